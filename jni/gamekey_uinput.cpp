@@ -0,0 +1,202 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+#define LOG_TAG "GamekeyUinput"
+
+#include <errno.h>
+#include <fcntl.h>
+#include <linux/uinput.h>
+#include <string.h>
+#include <sys/ioctl.h>
+#include <unistd.h>
+
+#include <jni.h>
+#include <log/log.h>
+
+namespace {
+
+constexpr int kMaxSlots = 10;
+// Per slot: SLOT, TRACKING_ID, POSITION_X, POSITION_Y; then BTN_TOUCH, SYN_REPORT
+constexpr int kMaxEvents = kMaxSlots * 4 + 2;
+
+struct AbsAxis {
+    int code;
+    int max;
+};
+
+/*
+ * Creates a virtual device with the given EV_KEY codes and EV_ABS axes (each
+ * ranging from 0 to max); direct marks it as a touchscreen. Returns the fd,
+ * or -1 with the failure logged.
+ */
+int createDevice(const char* name, int product, const jint* keys, int keyCount,
+                 const AbsAxis* axes, int axisCount, bool direct) {
+    int fd = open("/dev/uinput", O_WRONLY | O_NONBLOCK | O_CLOEXEC);
+    if (fd < 0) {
+        ALOGE("Failed to open /dev/uinput: %s", strerror(errno));
+        return -1;
+    }
+
+    bool ok = ioctl(fd, UI_SET_EVBIT, EV_KEY) == 0;
+    for (int i = 0; ok && i < keyCount; i++) {
+        ok = ioctl(fd, UI_SET_KEYBIT, keys[i]) == 0;
+    }
+    if (ok && axisCount > 0) {
+        ok = ioctl(fd, UI_SET_EVBIT, EV_ABS) == 0;
+    }
+    for (int i = 0; ok && i < axisCount; i++) {
+        struct uinput_abs_setup abs = {};
+        abs.code = axes[i].code;
+        abs.absinfo.minimum = 0;
+        abs.absinfo.maximum = axes[i].max;
+        ok = ioctl(fd, UI_SET_ABSBIT, axes[i].code) == 0 && ioctl(fd, UI_ABS_SETUP, &abs) == 0;
+    }
+    if (ok && direct) {
+        ok = ioctl(fd, UI_SET_PROPBIT, INPUT_PROP_DIRECT) == 0;
+    }
+
+    if (ok) {
+        struct uinput_setup setup = {};
+        strncpy(setup.name, name, UINPUT_MAX_NAME_SIZE - 1);
+        // BUS_VIRTUAL keeps the device internal, so InputReader maps a
+        // touchscreen onto the built-in display and applies its rotation.
+        setup.id.bustype = BUS_VIRTUAL;
+        setup.id.vendor = 0x2717;
+        setup.id.product = product;
+        setup.id.version = 1;
+        ok = ioctl(fd, UI_DEV_SETUP, &setup) == 0 && ioctl(fd, UI_DEV_CREATE) == 0;
+    }
+
+    if (!ok) {
+        ALOGE("Failed to set up %s: %s", name, strerror(errno));
+        close(fd);
+        return -1;
+    }
+    return fd;
+}
+
+jint nativeOpen(JNIEnv* /* env */, jclass /* clazz */, jint width, jint height) {
+    const jint keys[] = {BTN_TOUCH};
+    const AbsAxis axes[] = {
+        {ABS_MT_SLOT, kMaxSlots - 1},
+        {ABS_MT_TRACKING_ID, 0xffff},
+        {ABS_MT_POSITION_X, width - 1},
+        {ABS_MT_POSITION_Y, height - 1},
+    };
+    return createDevice("gamekey-touchscreen", 0x6b65, keys, 1, axes,
+                        sizeof(axes) / sizeof(axes[0]), true);
+}
+
+void nativeClose(JNIEnv* /* env */, jclass /* clazz */, jint fd) {
+    if (fd < 0) return;
+    ioctl(fd, UI_DEV_DESTROY);
+    close(fd);
+}
+
+inline void addEvent(struct input_event* events, int& count, int type, int code, int value) {
+    events[count].type = type;
+    events[count].code = code;
+    events[count].value = value;
+    count++;
+}
+
+/*
+ * Writes the state of every slot followed by a SYN_REPORT in one write().
+ * trackingIds[slot] is -1 for a slot without a contact.
+ */
+jboolean nativeReport(JNIEnv* env, jclass /* clazz */, jint fd, jintArray trackingIds,
+                      jfloatArray xs, jfloatArray ys) {
+    struct input_event events[kMaxEvents] = {};
+    int count = 0;
+    bool touching = false;
+
+    jint* ids = static_cast<jint*>(env->GetPrimitiveArrayCritical(trackingIds, nullptr));
+    jfloat* x = static_cast<jfloat*>(env->GetPrimitiveArrayCritical(xs, nullptr));
+    jfloat* y = static_cast<jfloat*>(env->GetPrimitiveArrayCritical(ys, nullptr));
+    if (ids != nullptr && x != nullptr && y != nullptr) {
+        for (int slot = 0; slot < kMaxSlots; slot++) {
+            addEvent(events, count, EV_ABS, ABS_MT_SLOT, slot);
+            addEvent(events, count, EV_ABS, ABS_MT_TRACKING_ID, ids[slot]);
+            if (ids[slot] >= 0) {
+                touching = true;
+                addEvent(events, count, EV_ABS, ABS_MT_POSITION_X, static_cast<int>(x[slot]));
+                addEvent(events, count, EV_ABS, ABS_MT_POSITION_Y, static_cast<int>(y[slot]));
+            }
+        }
+    }
+    if (y != nullptr) env->ReleasePrimitiveArrayCritical(ys, y, JNI_ABORT);
+    if (x != nullptr) env->ReleasePrimitiveArrayCritical(xs, x, JNI_ABORT);
+    if (ids != nullptr) env->ReleasePrimitiveArrayCritical(trackingIds, ids, JNI_ABORT);
+    if (count == 0) return JNI_FALSE;
+
+    addEvent(events, count, EV_KEY, BTN_TOUCH, touching ? 1 : 0);
+    addEvent(events, count, EV_SYN, SYN_REPORT, 0);
+
+    ssize_t size = sizeof(struct input_event) * count;
+    return TEMP_FAILURE_RETRY(write(fd, events, size)) == size ? JNI_TRUE : JNI_FALSE;
+}
+
+/*
+ * Creates a gamepad with the given EV_KEY button codes.
+ */
+jint nativeOpenGamepad(JNIEnv* env, jclass /* clazz */, jintArray buttons) {
+    jint* codes = env->GetIntArrayElements(buttons, nullptr);
+    if (codes == nullptr) return -1;
+    int fd = createDevice("gamekey-gamepad", 0x6770, codes, env->GetArrayLength(buttons),
+                          nullptr, 0, false);
+    env->ReleaseIntArrayElements(buttons, codes, JNI_ABORT);
+    return fd;
+}
+
+jboolean nativeButton(JNIEnv* /* env */, jclass /* clazz */, jint fd, jint code, jboolean down) {
+    struct input_event events[2] = {};
+    events[0].type = EV_KEY;
+    events[0].code = code;
+    events[0].value = down ? 1 : 0;
+    events[1].type = EV_SYN;
+    events[1].code = SYN_REPORT;
+    return TEMP_FAILURE_RETRY(write(fd, events, sizeof(events))) == sizeof(events)
+            ? JNI_TRUE : JNI_FALSE;
+}
+
+bool registerNatives(JNIEnv* env, const char* className, const JNINativeMethod* methods,
+                     int count) {
+    jclass clazz = env->FindClass(className);
+    if (clazz == nullptr || env->RegisterNatives(clazz, methods, count) != 0) {
+        ALOGE("Failed to register native methods of %s", className);
+        return false;
+    }
+    return true;
+}
+
+const JNINativeMethod kTouchscreenMethods[] = {
+    {"nativeOpen", "(II)I", reinterpret_cast<void*>(nativeOpen)},
+    {"nativeClose", "(I)V", reinterpret_cast<void*>(nativeClose)},
+    {"nativeReport", "(I[I[F[F)Z", reinterpret_cast<void*>(nativeReport)},
+};
+
+const JNINativeMethod kGamepadMethods[] = {
+    {"nativeOpen", "([I)I", reinterpret_cast<void*>(nativeOpenGamepad)},
+    {"nativeClose", "(I)V", reinterpret_cast<void*>(nativeClose)},
+    {"nativeButton", "(IIZ)Z", reinterpret_cast<void*>(nativeButton)},
+};
+
+}  // namespace
+
+jint JNI_OnLoad(JavaVM* vm, void* /* reserved */) {
+    JNIEnv* env;
+    if (vm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) != JNI_OK) {
+        return JNI_ERR;
+    }
+
+    if (!registerNatives(env, "org/aospextended/device/gamekey/GamekeyUinputTouchscreen",
+                         kTouchscreenMethods,
+                         sizeof(kTouchscreenMethods) / sizeof(kTouchscreenMethods[0])) ||
+        !registerNatives(env, "org/aospextended/device/gamekey/GamekeyGamepad",
+                         kGamepadMethods, sizeof(kGamepadMethods) / sizeof(kGamepadMethods[0]))) {
+        return JNI_ERR;
+    }
+    return JNI_VERSION_1_6;
+}
@@ -29,6 +29,7 @@ import android.view.MenuItem;
 import android.view.MenuInflater;
 
 import androidx.appcompat.app.AlertDialog;
+import androidx.preference.EditTextPreference;
 import androidx.preference.PreferenceFragmentCompat;
 import androidx.preference.Preference;
 import androidx.preference.ListPreference;
@@ -38,6 +39,8 @@ import androidx.preference.PreferenceScreen;
 import androidx.preference.SwitchPreference;
 import androidx.preference.TwoStatePreference;
 
+import org.aospextended.device.gamekey.GamekeyMacroPlayer;
+import org.aospextended.device.gamekey.GamekeyService;
 import org.aospextended.device.gestures.TouchGestures;
 import org.aospextended.device.gestures.TouchGesturesActivity;
 import org.aospextended.device.util.AppListActivity;
@@ -46,6 +49,9 @@ import org.aospextended.device.vibration.VibratorStrengthPreference;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 import java.util.Date;
 import java.util.Random;
@@ -89,6 +95,15 @@ public class XiaomiParts extends PreferenceFragmentCompat implements
 
     private Preference mTriggers;
     private Preference mCustomTrigger;
+
+    private static final String[] MACRO_KEYS = {
+        "left_trigger_double_click_macro", "right_trigger_double_click_macro",
+        "left_trigger_long_press_macro", "right_trigger_long_press_macro"
+    };
+
+    private EditTextPreference mMacroName;
+    private Preference mRecordMacro;
+    private ListPreference[] mMacros = new ListPreference[MACRO_KEYS.length];
     private boolean mStop;
 
     private Handler mHandler;
@@ -157,6 +172,32 @@ public class XiaomiParts extends PreferenceFragmentCompat implements
         mAlertSliderMode.setSummary(mAlertSliderMode.getEntry());
         mAlertSliderMode.setOnPreferenceChangeListener(this);
 
+        mMacroName = (EditTextPreference) findPreference("gamekey_macro_name");
+        mRecordMacro = findPreference("gamekey_record_macro");
+        mRecordMacro.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                String name = mMacroName.getText();
+                if (name == null || GamekeyMacroPlayer.Companion.macroFile(
+                        getMacroDir(), name.trim()) == null) {
+                    Toast.makeText(getContext(), R.string.macro_name_invalid,
+                            Toast.LENGTH_SHORT).show();
+                    return true;
+                }
+                // The service shows the recording overlay on top of everything
+                Intent intent = new Intent(getContext(), GamekeyService.class)
+                        .setAction(GamekeyService.ACTION_RECORD_MACRO)
+                        .putExtra(GamekeyService.EXTRA_MACRO_NAME, name.trim());
+                getContext().startService(intent);
+                return true;
+            }
+        });
+
+        for (int i = 0; i < MACRO_KEYS.length; i++) {
+            mMacros[i] = (ListPreference) findPreference(MACRO_KEYS[i]);
+            mMacros[i].setOnPreferenceChangeListener(this);
+        }
+
         mLedDisco = (SwitchPreference) findPreference("led_disco");
         mLedDisco.setChecked(mPrefs.getBoolean("led_disco", false));
         mLedDisco.setOnPreferenceChangeListener(this);
@@ -180,6 +221,42 @@ public class XiaomiParts extends PreferenceFragmentCompat implements
 */
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        // Pick up macros recorded since the screen was created
+        updateMacros();
+    }
+
+    private File getMacroDir() {
+        return new File(getContext().getFilesDir(), GamekeyService.MACRO_DIR);
+    }
+
+    private void updateMacros() {
+        List<String> names = new ArrayList<>();
+        String[] files = getMacroDir().list();
+        if (files != null) {
+            Arrays.sort(files);
+            for (String file : files) {
+                if (file.endsWith(GamekeyMacroPlayer.FILE_SUFFIX)) {
+                    names.add(file.substring(0,
+                            file.length() - GamekeyMacroPlayer.FILE_SUFFIX.length()));
+                }
+            }
+        }
+        List<String> entries = new ArrayList<>(names);
+        entries.add(0, getString(R.string.macro_none));
+        names.add(0, "");
+        for (ListPreference macro : mMacros) {
+            macro.setEntries(entries.toArray(new String[0]));
+            macro.setEntryValues(names.toArray(new String[0]));
+            String value = mPrefs.getString(macro.getKey(), "");
+            macro.setValue(value);
+            int index = macro.findIndexOfValue(value);
+            macro.setSummary(index >= 0 ? entries.get(index) : value);
+        }
+    }
+
     @Override
     public boolean onPreferenceTreeClick(Preference preference) {
         if (preference == mTriggers) {
@@ -247,6 +324,14 @@ public class XiaomiParts extends PreferenceFragmentCompat implements
             return true;
         }
 
+        for (ListPreference macro : mMacros) {
+            if (preference == macro) {
+                int index = macro.findIndexOfValue((String) newValue);
+                macro.setSummary(macro.getEntries()[index]);
+                return true;
+            }
+        }
+
         if (preference == mLedInCalls) {
             Utils.putIntSystem(getActivity(), "led_in_calls", ((Boolean) newValue) ? 1 : 0);
             return true;
@@ -0,0 +1,31 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+import java.util.concurrent.locks.LockSupport
+
+// Wake up this long before a deadline and spin the remainder
+internal const val DEADLINE_SPIN_NANOS = 200_000L
+
+/**
+ * Waits for [deadline] in the System.nanoTime() base: parks until shortly
+ * before it and spins the rest, which keeps wakeup jitter in the tens of
+ * microseconds. [cancelled] is checked on every wakeup, so a thread that sets
+ * its condition should unpark the waiter.
+ * @return false if cancelled before the deadline
+ */
+internal inline fun waitForDeadline(deadline: Long, cancelled: () -> Boolean): Boolean {
+    while (true) {
+        if (cancelled()) return false
+        val remaining = deadline - System.nanoTime()
+        if (remaining <= 0) return true
+        if (remaining > DEADLINE_SPIN_NANOS) {
+            LockSupport.parkNanos(remaining - DEADLINE_SPIN_NANOS)
+        } else {
+            Thread.onSpinWait()
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import java.io.PrintWriter
+
+/**
+ * Debounce and anti-ghosting stage between [TriggersReader] and the gesture
+ * logic. Runs on the reader's looper; O(1) per frame and allocation-free.
+ *
+ * - Debounce: the first edge of a bit is passed through immediately and locks
+ *   that bit for its debounce window. Flips inside the window are treated as
+ *   contact bounce and dropped; once the window ends the bit is re-synced to
+ *   the raw state, so a genuine short press is never lost.
+ * - Anti-ghosting: a key can only be pressed while its slider is open, so a
+ *   press reported while the slider is closed is dropped. The key contacts
+ *   also rattle while a slider moves, so key presses on that side are held
+ *   off for a dead time after every slider edge.
+ */
+class GamekeyDebounceFilter(
+    looper: Looper,
+    private val sink: TriggersReader.FrameSink,
+) : TriggersReader.FrameSink {
+    companion object {
+        const val DEFAULT_KEY_DEBOUNCE_MS = 5
+        const val DEFAULT_HALL_DEBOUNCE_MS = 20
+        const val DEFAULT_SLIDER_DEAD_TIME_MS = 30
+
+        private const val BITS = 4
+        private const val NANOS_PER_MS = 1_000_000L
+
+        private fun hallForKey(key: Int) =
+            if (key == TriggersReader.KEY_LEFT) TriggersReader.HALL_LEFT else TriggersReader.HALL_RIGHT
+    }
+
+    private val handler = Handler(looper)
+
+    // Indexed by bit position, see TriggersReader.HALL_LEFT and friends
+    private val windowNanos = LongArray(BITS)
+    private val lockedUntil = LongArray(BITS)
+    private var sliderDeadTimeNanos = 0L
+    private var leftKeyDeadUntil = 0L
+    private var rightKeyDeadUntil = 0L
+
+    private var rawFrame = 0
+    private var filteredFrame = 0
+
+    @Volatile var bouncesSuppressed = 0L
+        private set
+    @Volatile var ghostsSuppressed = 0L
+        private set
+
+    private val resyncRunnable = Runnable {
+        filter(rawFrame, SystemClock.elapsedRealtimeNanos())
+    }
+
+    init {
+        setWindows(DEFAULT_KEY_DEBOUNCE_MS, DEFAULT_HALL_DEBOUNCE_MS, DEFAULT_SLIDER_DEAD_TIME_MS)
+    }
+
+    /**
+     * Must be called on the filter's looper.
+     */
+    fun setWindows(keyDebounceMs: Int, hallDebounceMs: Int, sliderDeadTimeMs: Int) {
+        val key = keyDebounceMs.coerceAtLeast(0) * NANOS_PER_MS
+        val hall = hallDebounceMs.coerceAtLeast(0) * NANOS_PER_MS
+        windowNanos[Integer.numberOfTrailingZeros(TriggersReader.HALL_LEFT)] = hall
+        windowNanos[Integer.numberOfTrailingZeros(TriggersReader.HALL_RIGHT)] = hall
+        windowNanos[Integer.numberOfTrailingZeros(TriggersReader.KEY_LEFT)] = key
+        windowNanos[Integer.numberOfTrailingZeros(TriggersReader.KEY_RIGHT)] = key
+        sliderDeadTimeNanos = sliderDeadTimeMs.coerceAtLeast(0) * NANOS_PER_MS
+    }
+
+    override fun onFrame(frame: Int, timestampNanos: Long) {
+        rawFrame = frame
+        filter(frame, timestampNanos)
+    }
+
+    private fun filter(raw: Int, now: Long) {
+        var pending = raw xor filteredFrame
+        if (pending == 0) return
+
+        var frame = filteredFrame
+        var resyncAt = Long.MAX_VALUE
+        while (pending != 0) {
+            val bit = Integer.lowestOneBit(pending)
+            pending = pending and bit.inv()
+            val index = Integer.numberOfTrailingZeros(bit)
+
+            if (now < lockedUntil[index]) {
+                bouncesSuppressed++
+                if (lockedUntil[index] < resyncAt) resyncAt = lockedUntil[index]
+                continue
+            }
+
+            val isKeyPress = (bit == TriggersReader.KEY_LEFT || bit == TriggersReader.KEY_RIGHT) &&
+                    raw and bit != 0
+            if (isKeyPress) {
+                if (frame and hallForKey(bit) == 0) {
+                    ghostsSuppressed++
+                    continue
+                }
+                val deadUntil = if (bit == TriggersReader.KEY_LEFT) leftKeyDeadUntil else rightKeyDeadUntil
+                if (now < deadUntil) {
+                    ghostsSuppressed++
+                    if (deadUntil < resyncAt) resyncAt = deadUntil
+                    continue
+                }
+            }
+
+            frame = frame xor bit
+            lockedUntil[index] = now + windowNanos[index]
+            if (bit == TriggersReader.HALL_LEFT) {
+                leftKeyDeadUntil = now + sliderDeadTimeNanos
+            } else if (bit == TriggersReader.HALL_RIGHT) {
+                rightKeyDeadUntil = now + sliderDeadTimeNanos
+            }
+        }
+
+        if (resyncAt != Long.MAX_VALUE) {
+            handler.removeCallbacks(resyncRunnable)
+            handler.postDelayed(resyncRunnable, (resyncAt - now) / NANOS_PER_MS + 1)
+        }
+
+        if (frame != filteredFrame) {
+            filteredFrame = frame
+            sink.onFrame(frame, now)
+        }
+    }
+
+    fun dump(pw: PrintWriter) {
+        pw.println("  debounce: bouncesSuppressed=$bouncesSuppressed ghostsSuppressed=$ghostsSuppressed")
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+import android.content.Context
+import android.graphics.Point
+import android.graphics.Rect
+import android.hardware.display.DisplayManager
+import android.os.Handler
+import android.util.Log
+import android.view.Display
+import android.view.Surface
+import java.io.PrintWriter
+
+/**
+ * Keeps the injector's coordinate transform in line with the display rotation.
+ *
+ * Trigger coordinates are stored in the natural (portrait) orientation. A 2x3
+ * affine matrix per rotation is precomputed whenever the display size changes
+ * and handed to [GamekeyTouchInjector] when the rotation changes, so a press
+ * only multiplies by a cached matrix.
+ *
+ * Games lay out their controls in display coordinates, so when a game flips by
+ * 180° relative to the rotation the triggers were set up in (landscape-left vs
+ * landscape-right) its buttons stay where they were on screen while the
+ * physical keys trade places. In that case the reference rotation's matrix is
+ * kept and the left/right triggers are swapped instead.
+ *
+ * Positions are relative to the game's task: when the game runs in a window
+ * (split-screen, freeform) or on another display, the full-screen layout is
+ * scaled into the task bounds and the events are sent to the task's display.
+ * The bounds come from the task stack callbacks ([setTaskBounds]) and are
+ * folded into the same cached matrix.
+ */
+class GamekeyDisplayTransform(
+    context: Context,
+    private val handler: Handler,
+    private val injector: GamekeyTouchInjector,
+) : DisplayManager.DisplayListener {
+    companion object {
+        private const val TAG = "GamekeyDisplayTransform"
+    }
+
+    private val displayManager = context.getSystemService(DisplayManager::class.java)
+
+    // Indexed by Surface.ROTATION_*
+    private val matrices = Array(4) { FloatArray(6) }
+    private var naturalWidth = 0
+    private var naturalHeight = 0
+
+    private var referenceRotation = Surface.ROTATION_90
+    private var rotation = -1
+    private var swapped = false
+
+    // Focused task; empty bounds = fullscreen
+    private var taskDisplayId = Display.DEFAULT_DISPLAY
+    private val taskBounds = Rect()
+    private val window = Rect()
+    private val displaySize = Point()
+
+    // Scratch matrices handed to the injector
+    private val matrix = FloatArray(6)
+    private val naturalMatrix = FloatArray(6)
+    private val windowMatrix = FloatArray(6)
+    private val inverse = FloatArray(6)
+
+    fun start() {
+        displayManager.registerDisplayListener(this, handler)
+        handler.post { update(true) }
+    }
+
+    fun stop() {
+        displayManager.unregisterDisplayListener(this)
+    }
+
+    /**
+     * Sets the rotation the trigger positions were configured in. Must be
+     * called on the handler's thread.
+     */
+    fun setReferenceRotation(rotation: Int) {
+        referenceRotation = rotation and 3
+        update(true)
+    }
+
+    /**
+     * Sets the display and bounds of the focused task, empty bounds for a
+     * fullscreen task. Must be called on the handler's thread.
+     */
+    fun setTaskBounds(displayId: Int, bounds: Rect) {
+        if (displayId == taskDisplayId && bounds == taskBounds) return
+        taskDisplayId = displayId
+        taskBounds.set(bounds)
+        update(true)
+    }
+
+    override fun onDisplayAdded(displayId: Int) {}
+
+    override fun onDisplayRemoved(displayId: Int) {}
+
+    override fun onDisplayChanged(displayId: Int) {
+        if (displayId == Display.DEFAULT_DISPLAY) {
+            update(false)
+        } else if (displayId == taskDisplayId) {
+            update(true)
+        }
+    }
+
+    private fun update(force: Boolean) {
+        val display = displayManager.getDisplay(Display.DEFAULT_DISPLAY) ?: return
+        val mode = display.mode
+        // Mode sizes are in the natural orientation
+        val width = minOf(mode.physicalWidth, mode.physicalHeight)
+        val height = maxOf(mode.physicalWidth, mode.physicalHeight)
+        if (width != naturalWidth || height != naturalHeight) {
+            naturalWidth = width
+            naturalHeight = height
+            computeMatrices(width.toFloat(), height.toFloat())
+            Log.i(TAG, "Natural display size ${width}x$height")
+        } else if (!force && display.rotation == rotation) {
+            return
+        }
+
+        rotation = display.rotation
+        swapped = rotation == (referenceRotation + 2) % 4
+        computeWindowMatrix(width.toFloat(), height.toFloat())
+
+        // Injection: natural -> display -> task window
+        multiply(matrix, windowMatrix, matrices[if (swapped) referenceRotation else rotation])
+        // uinput: the same display position in natural coordinates, as
+        // InputReader applies the current rotation itself
+        invert(inverse, matrices[rotation])
+        multiply(naturalMatrix, inverse, matrix)
+        injector.setTransform(matrix, naturalMatrix, inverse, swapped, taskDisplayId)
+    }
+
+    /**
+     * Maps the full default display in the current rotation onto the task
+     * bounds, or onto the whole of the task's display if it is fullscreen.
+     */
+    private fun computeWindowMatrix(naturalW: Float, naturalH: Float) {
+        val portrait = rotation == Surface.ROTATION_0 || rotation == Surface.ROTATION_180
+        val w = if (portrait) naturalW else naturalH
+        val h = if (portrait) naturalH else naturalW
+
+        window.set(taskBounds)
+        if (window.isEmpty && taskDisplayId != Display.DEFAULT_DISPLAY) {
+            displayManager.getDisplay(taskDisplayId)?.let {
+                it.getRealSize(displaySize)
+                window.set(0, 0, displaySize.x, displaySize.y)
+            }
+        }
+        if (window.isEmpty) {
+            windowMatrix.set(1f, 0f, 0f, 0f, 1f, 0f)
+        } else {
+            windowMatrix.set(window.width() / w, 0f, window.left.toFloat(),
+                0f, window.height() / h, window.top.toFloat())
+        }
+    }
+
+    private fun computeMatrices(w: Float, h: Float) {
+        // x' = m0 x + m1 y + m2, y' = m3 x + m4 y + m5
+        matrices[Surface.ROTATION_0].set(1f, 0f, 0f, 0f, 1f, 0f)
+        matrices[Surface.ROTATION_90].set(0f, 1f, 0f, -1f, 0f, w)
+        matrices[Surface.ROTATION_180].set(-1f, 0f, w, 0f, -1f, h)
+        matrices[Surface.ROTATION_270].set(0f, -1f, h, 1f, 0f, 0f)
+    }
+
+    /**
+     * out = a after b, i.e. applies b first. [out] may be [a] or [b].
+     */
+    private fun multiply(out: FloatArray, a: FloatArray, b: FloatArray) {
+        out.set(a[0] * b[0] + a[1] * b[3], a[0] * b[1] + a[1] * b[4], a[0] * b[2] + a[1] * b[5] + a[2],
+            a[3] * b[0] + a[4] * b[3], a[3] * b[1] + a[4] * b[4], a[3] * b[2] + a[4] * b[5] + a[5])
+    }
+
+    private fun invert(out: FloatArray, m: FloatArray) {
+        val det = m[0] * m[4] - m[1] * m[3]
+        out.set(m[4] / det, -m[1] / det, (m[1] * m[5] - m[2] * m[4]) / det,
+            -m[3] / det, m[0] / det, (m[2] * m[3] - m[0] * m[5]) / det)
+    }
+
+    private fun FloatArray.set(vararg values: Float) {
+        System.arraycopy(values, 0, this, 0, 6)
+    }
+
+    fun dump(pw: PrintWriter) {
+        pw.println("  display transform: rotation=$rotation referenceRotation=$referenceRotation " +
+                "swapped=$swapped natural=${naturalWidth}x$naturalHeight")
+        pw.println("  task: displayId=$taskDisplayId bounds=${taskBounds.toShortString()}")
+    }
+}
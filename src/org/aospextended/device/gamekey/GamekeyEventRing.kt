@@ -0,0 +1,164 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+import android.os.Handler
+import android.os.Looper
+import java.io.PrintWriter
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Lock-free ring of timestamped gamekey frames.
+ *
+ * There is a single producer (the [TriggersReader] on the input thread) and any
+ * number of consumers, each with its own read cursor, so several consumers can
+ * follow the same stream. Records are two primitive arrays indexed by sequence
+ * number; nothing is allocated per frame.
+ *
+ * Overflow policy: blocking consumers live on the producer's looper and are
+ * drained inline on every publish, so they see every frame and the ring never
+ * fills up for them. Consumers on other threads are non-blocking: they never
+ * hold the producer back, and one that falls a whole ring behind skips ahead
+ * to the newest frame (coalesce), so it sees the latest state but not every
+ * transition. Skipped frames are reported in [dump].
+ */
+class GamekeyEventRing(
+    capacity: Int,
+    private val producerLooper: Looper,
+) : TriggersReader.FrameSink {
+    fun interface Listener {
+        /**
+         * @param frame the frame bitmask, see [TriggersReader.HALL_LEFT]
+         * @param changed the bits that differ from the previous frame seen by this consumer
+         * @param timestampNanos elapsedRealtimeNanos() captured when the frame was read
+         */
+        fun onFrame(frame: Int, changed: Int, timestampNanos: Long)
+    }
+
+    init {
+        require(capacity >= 2) { "capacity must be at least 2" }
+    }
+
+    private val size = Integer.highestOneBit(capacity - 1) shl 1
+    private val mask = size - 1
+    private val frames = IntArray(size)
+    private val timestamps = LongArray(size)
+
+    // Next sequence number to be written; only advanced by the producer
+    private val head = AtomicLong()
+
+    @Volatile private var consumers = emptyArray<Consumer>()
+
+    // Written by the producer only
+    @Volatile private var lastFrame = 0
+
+    /**
+     * A reader of the ring. [listener] is called on [looper] for every record,
+     * in order, or with skipped records for a non-blocking consumer. A
+     * consumer that lives on the producer's thread is drained inline, others
+     * are signalled through their looper.
+     */
+    inner class Consumer internal constructor(
+        looper: Looper,
+        private val listener: Listener,
+        internal val blocking: Boolean,
+    ) {
+        private val handler = Handler(looper)
+        private val cursor = AtomicLong(head.get())
+        private val scheduled = AtomicBoolean()
+        private var lastFrame = this@GamekeyEventRing.lastFrame
+        private val drainRunnable = Runnable {
+            scheduled.set(false)
+            drain()
+        }
+
+        @Volatile internal var skipped = 0L
+            private set
+
+        internal fun signal() {
+            if (handler.looper.isCurrentThread) {
+                drain()
+            } else if (scheduled.compareAndSet(false, true)) {
+                handler.post(drainRunnable)
+            }
+        }
+
+        private fun drain() {
+            var seq = cursor.get()
+            while (true) {
+                val end = head.get()
+                if (seq >= end) break
+                // The producer may be reusing the oldest unread slots
+                if (!blocking && end - seq >= size) {
+                    skipped += end - 1 - seq
+                    seq = end - 1
+                }
+                val index = (seq and mask.toLong()).toInt()
+                val frame = frames[index]
+                val timestamp = timestamps[index]
+                // Overwritten while reading: retry from the newest frame
+                if (!blocking && head.get() - seq >= size) continue
+                seq++
+                cursor.lazySet(seq)
+
+                val changed = frame xor lastFrame
+                lastFrame = frame
+                if (changed != 0) {
+                    listener.onFrame(frame, changed, timestamp)
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a consumer. A [blocking] one sees every frame and must live on the
+     * producer's looper; others may skip frames instead.
+     */
+    fun addConsumer(looper: Looper, listener: Listener, blocking: Boolean = true): Consumer {
+        require(!blocking || looper == producerLooper) {
+            "blocking consumers must run on the producer's looper"
+        }
+        val consumer = Consumer(looper, listener, blocking)
+        synchronized(this) {
+            consumers += consumer
+        }
+        return consumer
+    }
+
+    fun removeConsumer(consumer: Consumer) {
+        synchronized(this) {
+            consumers = consumers.filter { it !== consumer }.toTypedArray()
+        }
+    }
+
+    override fun onFrame(frame: Int, timestampNanos: Long) = publish(frame, timestampNanos)
+
+    /**
+     * Appends a frame. Must only be called from the producer thread.
+     */
+    fun publish(frame: Int, timestampNanos: Long) {
+        val seq = head.get()
+        val index = (seq and mask.toLong()).toInt()
+        frames[index] = frame
+        timestamps[index] = timestampNanos
+        // Release the slot contents before consumers can observe the new head
+        head.lazySet(seq + 1)
+        lastFrame = frame
+        signalConsumers()
+    }
+
+    private fun signalConsumers() {
+        for (consumer in consumers) {
+            consumer.signal()
+        }
+    }
+
+    fun dump(pw: PrintWriter) {
+        pw.println("  event ring: capacity=$size published=${head.get()} " +
+                "consumers=${consumers.size} skipped=${consumers.sumOf { it.skipped }}")
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+import android.util.Log
+import java.io.PrintWriter
+
+/**
+ * Presents the gamekey buttons as a gamepad.
+ *
+ * The triggers are BUTTON_L2/R2 and the sliders BUTTON_C/Z (held while the
+ * slider is open). A virtual gamepad is created through /dev/uinput, so games
+ * see a real controller InputDevice. There is no injected fallback: injected
+ * keys carry no controller device, so if uinput is not available [open]
+ * fails and the caller keeps using touches. Thread-safe.
+ */
+class GamekeyGamepad {
+    companion object {
+        private const val TAG = "GamekeyGamepad"
+
+        const val BUTTON_LEFT_TRIGGER = 0
+        const val BUTTON_RIGHT_TRIGGER = 1
+        const val BUTTON_LEFT_SLIDER = 2
+        const val BUTTON_RIGHT_SLIDER = 3
+
+        // linux/input-event-codes.h, indexed by BUTTON_*
+        // (KEYCODE_BUTTON_L2, R2, C, Z through the generic gamepad layout)
+        private val EV_CODES = intArrayOf(0x138 /* BTN_TL2 */, 0x139 /* BTN_TR2 */,
+            0x132 /* BTN_C */, 0x135 /* BTN_Z */)
+
+        @JvmStatic private external fun nativeOpen(buttons: IntArray): Int
+        @JvmStatic private external fun nativeClose(fd: Int)
+        @JvmStatic private external fun nativeButton(fd: Int, code: Int, down: Boolean): Boolean
+    }
+
+    private var fd = -1
+    private var pressedButtons = 0
+    @Volatile var failures = 0L
+        private set
+
+    /** Whether the virtual gamepad exists and takes button events. */
+    val isOpen: Boolean
+        @Synchronized get() = fd >= 0
+
+    /**
+     * Creates the virtual gamepad.
+     * @return false if uinput is not available
+     */
+    @Synchronized
+    fun open(): Boolean {
+        if (fd >= 0) return true
+        fd = if (GamekeyNative.loaded) nativeOpen(EV_CODES) else -1
+        if (fd < 0) {
+            failures++
+            Log.w(TAG, "uinput gamepad unavailable")
+            return false
+        }
+        return true
+    }
+
+    /**
+     * Releases any held buttons and removes the virtual gamepad.
+     */
+    @Synchronized
+    fun close() {
+        if (fd < 0) return
+        for (button in EV_CODES.indices) {
+            if (pressedButtons and (1 shl button) != 0) setButton(button, false)
+        }
+        // Removing the device releases anything a failed write left down
+        nativeClose(fd)
+        fd = -1
+        pressedButtons = 0
+    }
+
+    @Synchronized
+    fun setButton(button: Int, down: Boolean) {
+        if (fd < 0) return
+        val bit = 1 shl button
+        if ((pressedButtons and bit != 0) == down) return
+        pressedButtons = pressedButtons xor bit
+        if (nativeButton(fd, EV_CODES[button], down)) return
+
+        failures++
+        Log.w(TAG, "uinput gamepad failed, removing it")
+        nativeClose(fd)
+        fd = -1
+        pressedButtons = 0
+    }
+
+    @Synchronized
+    fun dump(pw: PrintWriter) {
+        pw.println("  gamepad: open=${fd >= 0} pressed=0x${Integer.toHexString(pressedButtons)} " +
+                "failures=$failures")
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+import android.hardware.input.InputManager
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Process
+import android.os.SystemClock
+import android.util.Log
+import android.view.InputEvent
+import java.io.PrintWriter
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Ordered, asynchronous injection of input events.
+ *
+ * Events are appended by a single writer at a time (callers serialize on their
+ * own lock) and drained in FIFO order on a dedicated thread with
+ * INJECT_INPUT_EVENT_MODE_ASYNC, so a slow target window never blocks the
+ * trigger pipeline. Ownership of an enqueued event passes to the queue, which
+ * recycles it after injection.
+ */
+class GamekeyInjectionQueue(
+    private val inputManager: InputManager,
+    capacity: Int,
+) {
+    companion object {
+        private const val TAG = "GamekeyInjectionQueue"
+        private const val FULL_BACKOFF_NANOS = 50_000L
+        // Longest the writer waits on a full queue before dropping the event
+        private const val FULL_WAIT_MAX_NANOS = 50_000_000L
+    }
+
+    init {
+        require(capacity >= 2) { "capacity must be at least 2" }
+    }
+
+    private val size = Integer.highestOneBit(capacity - 1) shl 1
+    private val mask = size - 1
+    private val events = arrayOfNulls<InputEvent>(size)
+    private val captureTimes = LongArray(size)
+
+    // head: next slot to write (writer), tail: next slot to inject (drain thread)
+    private val head = AtomicLong()
+    private val tail = AtomicLong()
+
+    private val thread = HandlerThread("gamekey-inject", Process.THREAD_PRIORITY_URGENT_DISPLAY)
+    private val handler: Handler
+    private val drainScheduled = AtomicBoolean()
+    private val drainRunnable = Runnable {
+        drainScheduled.set(false)
+        drain()
+    }
+
+    @Volatile private var maxDepth = 0L
+    @Volatile private var fullWaits = 0L
+    @Volatile private var dropped = 0L
+    @Volatile private var shutDown = false
+
+    val injectLatency = LatencyStats("capture-to-inject latency")
+
+    init {
+        thread.start()
+        handler = Handler(thread.looper)
+    }
+
+    /**
+     * Appends an event. [captureNanos] is the elapsedRealtimeNanos() of the
+     * frame that caused it, or 0 if there is none. Never reorders: if the
+     * queue is full the writer waits for the drain thread, for at most
+     * [FULL_WAIT_MAX_NANOS]; after that, or once the queue is shut down, the
+     * event is recycled and counted as dropped.
+     */
+    fun enqueue(event: InputEvent, captureNanos: Long) {
+        val seq = head.get()
+        var waitStart = 0L
+        while (shutDown || seq - tail.get() >= size) {
+            if (!shutDown) {
+                val now = System.nanoTime()
+                if (waitStart == 0L) {
+                    waitStart = now
+                    fullWaits++
+                }
+                if (now - waitStart < FULL_WAIT_MAX_NANOS) {
+                    LockSupport.parkNanos(FULL_BACKOFF_NANOS)
+                    continue
+                }
+                Log.w(TAG, "Injection queue stuck, dropping event")
+            }
+            dropped++
+            event.recycle()
+            return
+        }
+        val index = (seq and mask.toLong()).toInt()
+        events[index] = event
+        captureTimes[index] = captureNanos
+        head.lazySet(seq + 1)
+
+        val depth = seq + 1 - tail.get()
+        if (depth > maxDepth) maxDepth = depth
+
+        if (drainScheduled.compareAndSet(false, true)) {
+            handler.post(drainRunnable)
+        }
+    }
+
+    private fun drain() {
+        var seq = tail.get()
+        val end = head.get()
+        while (seq < end) {
+            val index = (seq and mask.toLong()).toInt()
+            val event = events[index]
+            val captureNanos = captureTimes[index]
+            events[index] = null
+            seq++
+            tail.lazySet(seq)
+
+            if (event == null) continue
+            try {
+                if (!inputManager.injectInputEvent(event, InputManager.INJECT_INPUT_EVENT_MODE_ASYNC)) {
+                    Log.w(TAG, "Event was not injected")
+                }
+                if (captureNanos != 0L) {
+                    injectLatency.record(SystemClock.elapsedRealtimeNanos() - captureNanos)
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to inject event", e)
+            }
+            event.recycle()
+        }
+    }
+
+    /**
+     * Injects everything still queued, then stops the drain thread.
+     */
+    fun shutdown() {
+        shutDown = true
+        thread.quitSafely()
+    }
+
+    fun dump(pw: PrintWriter) {
+        pw.println("  injection queue: depth=${head.get() - tail.get()} maxDepth=$maxDepth " +
+                "fullWaits=$fullWaits dropped=$dropped")
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+import android.os.HandlerThread
+import android.os.Process
+import android.util.Log
+import java.io.File
+import java.io.PrintWriter
+
+/**
+ * Dedicated looper thread for the trigger pipeline.
+ *
+ * Reading /dev/gamekey, gesture detection and touch injection all run here, so
+ * press-to-inject latency does not depend on the shared IO pool or on whatever
+ * the main looper is busy with. The thread runs at URGENT_DISPLAY priority and
+ * is moved into the top-app cpuset, which is where the big cores are available.
+ */
+class GamekeyInputThread : HandlerThread(NAME, Process.THREAD_PRIORITY_URGENT_DISPLAY) {
+    companion object {
+        private const val TAG = "GamekeyInputThread"
+        private const val NAME = "gamekey-input"
+    }
+
+    override fun onLooperPrepared() {
+        // There is no sched_setaffinity() in the framework; the top-app cpuset
+        // is the closest we can get to pinning onto the big cores.
+        try {
+            Process.setThreadGroupAndCpuset(threadId, Process.THREAD_GROUP_TOP_APP)
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to move input thread to top-app cpuset: ${e.message}")
+        }
+    }
+
+    /**
+     * Dumps the scheduler statistics of the input thread, as reported by the
+     * kernel, so the effect of the priority boost can be checked on device.
+     */
+    fun dump(pw: PrintWriter) {
+        val tid = threadId
+        pw.println("  $NAME: tid=$tid priority=${if (tid > 0) Process.getThreadPriority(tid) else 0}")
+        if (tid <= 0) return
+
+        val taskDir = "/proc/self/task/$tid"
+        try {
+            // <time on cpu ns> <time waiting on runqueue ns> <timeslices>
+            val schedstat = File("$taskDir/schedstat").readText().trim().split(" ")
+            if (schedstat.size >= 3) {
+                pw.println("    runTimeNs=${schedstat[0]} runqueueWaitNs=${schedstat[1]} " +
+                        "timeslices=${schedstat[2]}")
+            }
+            File("$taskDir/status").forEachLine { line ->
+                if (line.startsWith("Cpus_allowed_list") || line.contains("ctxt_switches")) {
+                    pw.println("    ${line.replace('\t', ' ')}")
+                }
+            }
+        } catch (e: Exception) {
+            pw.println("    sched stats unavailable: ${e.message}")
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+import android.util.Log
+import org.aospextended.device.util.Utils
+
+/**
+ * Programs the touch driver's own trigger touches through /proc/touchpanel.
+ *
+ * The driver synthesizes a touch at the programmed position when a trigger is
+ * pressed, so with a profile on the kernel backend nothing is injected from
+ * userspace at all. Every write is read back; if a node is missing or does not
+ * take the value, [apply] puts the default positions back and fails, and the
+ * caller falls back to injection.
+ */
+class GamekeyKernelTriggers {
+    companion object {
+        private const val TAG = "GamekeyKernelTriggers"
+        private const val NODE_DIR = "/proc/touchpanel"
+    }
+
+    @Volatile var active = false
+        private set
+    @Volatile var failures = 0L
+        private set
+
+    /**
+     * Programs the main point of each trigger of [profile] and enables the
+     * driver triggers. If the driver does not take all of it, the positions
+     * of [defaultProfile] and the previous enable states are written back, so
+     * it is never left half-programmed with the game's positions.
+     * @return true if the driver accepted everything
+     */
+    fun apply(profile: GamekeyProfile, defaultProfile: GamekeyProfile): Boolean {
+        val enabled = IntArray(2) { t -> read("${side(t)}_trigger_enable") ?: 0 }
+        var ok = true
+        for (t in GamekeyProfile.LEFT..GamekeyProfile.RIGHT) {
+            ok = ok && writePosition(t, profile) && write("${side(t)}_trigger_enable", 1)
+        }
+        if (!ok) {
+            failures++
+            Log.w(TAG, "Touch driver rejected trigger offload, using injection")
+            for (t in GamekeyProfile.LEFT..GamekeyProfile.RIGHT) {
+                writePosition(t, defaultProfile)
+                write("${side(t)}_trigger_enable", enabled[t])
+            }
+        }
+        active = ok
+        return ok
+    }
+
+    /**
+     * Puts the default profile's positions back into the driver when leaving
+     * the kernel backend.
+     */
+    fun release(defaultProfile: GamekeyProfile) {
+        if (!active) return
+        active = false
+        for (t in GamekeyProfile.LEFT..GamekeyProfile.RIGHT) {
+            writePosition(t, defaultProfile)
+        }
+    }
+
+    private fun side(t: Int) = if (t == GamekeyProfile.LEFT) "left" else "right"
+
+    private fun writePosition(t: Int, profile: GamekeyProfile): Boolean {
+        val points = profile.points[t]
+        return write("${side(t)}_trigger_x", points[0].toInt()) &&
+                write("${side(t)}_trigger_y", points[1].toInt())
+    }
+
+    private fun read(node: String): Int? =
+        Utils.readLine("$NODE_DIR/$node")?.trim()?.toFloatOrNull()?.toInt()
+
+    private fun write(node: String, value: Int): Boolean {
+        val path = "$NODE_DIR/$node"
+        if (!Utils.fileWritable(path)) return false
+        Utils.writeValue(path, value.toString())
+        val readBack = read(node)
+        if (readBack != value) {
+            Log.w(TAG, "$node: wrote $value, read back $readBack")
+            return false
+        }
+        return true
+    }
+}
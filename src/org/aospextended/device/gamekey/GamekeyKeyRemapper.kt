@@ -0,0 +1,85 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+import android.os.Handler
+import android.view.InputDevice
+import android.view.KeyCharacterMap
+import android.view.KeyEvent
+import android.view.ViewConfiguration
+import java.io.PrintWriter
+
+/**
+ * Sends a key instead of a touch for remapped triggers (e.g. SPACE for an
+ * emulator or a PC streaming client).
+ *
+ * The key is held for as long as the trigger is: DOWN on press, auto-repeat
+ * DOWNs with an increasing repeat count while held, UP on release, like a
+ * hardware keyboard. Repeats are scheduled at absolute times computed from
+ * the down time, so they do not drift. KeyEvents come from the framework's
+ * recycle pool and go through [GamekeyTouchInjector]'s ordered asynchronous
+ * path. Must be used on [handler]'s thread.
+ */
+class GamekeyKeyRemapper(
+    private val handler: Handler,
+    private val injector: GamekeyTouchInjector,
+) {
+    // Indexed by GamekeyProfile.LEFT / RIGHT; key code 0 = not held
+    private val keyCodes = IntArray(2)
+    private val downTimes = LongArray(2)
+    private val repeatCounts = IntArray(2)
+    private val repeatRunnables = Array(2) { t -> Runnable { repeat(t) } }
+
+    private val repeatTimeout = ViewConfiguration.getKeyRepeatTimeout().toLong()
+    private val repeatDelay = ViewConfiguration.getKeyRepeatDelay().toLong()
+
+    fun press(trigger: Int, keyCode: Int, eventTime: Long) {
+        if (keyCodes[trigger] != 0) return
+        keyCodes[trigger] = keyCode
+        downTimes[trigger] = eventTime
+        repeatCounts[trigger] = 0
+        send(trigger, KeyEvent.ACTION_DOWN, eventTime)
+        handler.postAtTime(repeatRunnables[trigger], eventTime + repeatTimeout)
+    }
+
+    fun release(trigger: Int, eventTime: Long) {
+        if (keyCodes[trigger] == 0) return
+        handler.removeCallbacks(repeatRunnables[trigger])
+        send(trigger, KeyEvent.ACTION_UP, maxOf(eventTime, downTimes[trigger]))
+        keyCodes[trigger] = 0
+    }
+
+    fun releaseAll(eventTime: Long) {
+        release(GamekeyProfile.LEFT, eventTime)
+        release(GamekeyProfile.RIGHT, eventTime)
+    }
+
+    private fun repeat(trigger: Int) {
+        if (keyCodes[trigger] == 0) return
+        repeatCounts[trigger]++
+        val eventTime = downTimes[trigger] + repeatTimeout + (repeatCounts[trigger] - 1) * repeatDelay
+        send(trigger, KeyEvent.ACTION_DOWN, eventTime)
+        handler.postAtTime(repeatRunnables[trigger], eventTime + repeatDelay)
+    }
+
+    private fun send(trigger: Int, action: Int, eventTime: Long) {
+        var flags = KeyEvent.FLAG_FROM_SYSTEM
+        if (action == KeyEvent.ACTION_DOWN && repeatCounts[trigger] == 1) {
+            flags = flags or KeyEvent.FLAG_LONG_PRESS
+        }
+        val event = KeyEvent.obtain(
+            downTimes[trigger], eventTime, action, keyCodes[trigger],
+            if (action == KeyEvent.ACTION_DOWN) repeatCounts[trigger] else 0,
+            0, KeyCharacterMap.VIRTUAL_KEYBOARD, 0, flags, InputDevice.SOURCE_KEYBOARD, null
+        )
+        injector.injectKeyEvent(event)
+    }
+
+    fun dump(pw: PrintWriter) {
+        pw.println("  key remap: held=${KeyEvent.keyCodeToString(keyCodes[GamekeyProfile.LEFT])}," +
+            "${KeyEvent.keyCodeToString(keyCodes[GamekeyProfile.RIGHT])}")
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+import android.os.Process
+import android.util.Log
+import java.io.File
+import java.io.PrintWriter
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Replays recorded touch macros through [GamekeyTouchInjector].
+ *
+ * Macro files are memory-mapped and decoded record by record while playing,
+ * so a long macro never has to fit on the heap. Each record is released at
+ * its recorded offset from the start of playback ([waitForDeadline]).
+ * Decoding uses preallocated arrays only.
+ *
+ * File format (big-endian):
+ * - header: magic [MAGIC], version [VERSION]
+ * - records: int offset from the first record in µs, byte action (masked),
+ *   byte action index, byte pointer count, then per pointer byte id,
+ *   short x, short y (display coordinates)
+ */
+class GamekeyMacroPlayer(private val injector: GamekeyTouchInjector) {
+    companion object {
+        private const val TAG = "GamekeyMacroPlayer"
+
+        const val MAGIC = 0x474b4d31 // "GKM1"
+        const val VERSION = 1
+        const val FILE_SUFFIX = ".gkm"
+
+        // Offset, action, action index, pointer count; per pointer id, x, y
+        private const val RECORD_HEADER_SIZE = 7
+        private const val POINTER_SIZE = 5
+
+        private val NAME_PATTERN = Regex("[A-Za-z0-9_-]+")
+
+        /**
+         * Returns the file of macro [name] in [dir], or null if the name is
+         * not a plain file name.
+         */
+        fun macroFile(dir: File, name: String): File? =
+            if (NAME_PATTERN.matches(name)) File(dir, name + FILE_SUFFIX) else null
+    }
+
+    private val lock = Any()
+    private var pendingFile: File? = null
+    @Volatile private var stopRequested = false
+    @Volatile private var quit = false
+
+    private val ids = IntArray(GamekeyTouchInjector.MAX_POINTERS)
+    private val xs = FloatArray(GamekeyTouchInjector.MAX_POINTERS)
+    private val ys = FloatArray(GamekeyTouchInjector.MAX_POINTERS)
+
+    val jitter = LatencyStats("macro event jitter")
+
+    private val thread = object : Thread("gamekey-macro") {
+        override fun run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY)
+            loop()
+        }
+    }
+
+    init {
+        thread.start()
+    }
+
+    /**
+     * Starts playing [file], stopping whatever is playing now.
+     */
+    fun play(file: File) {
+        synchronized(lock) {
+            pendingFile = file
+            stopRequested = true
+        }
+        LockSupport.unpark(thread)
+    }
+
+    fun stop() {
+        stopRequested = true
+        LockSupport.unpark(thread)
+    }
+
+    fun shutdown() {
+        quit = true
+        stop()
+    }
+
+    private fun loop() {
+        while (!quit) {
+            val file: File?
+            synchronized(lock) {
+                file = pendingFile
+                pendingFile = null
+                stopRequested = false
+            }
+            if (file == null) {
+                LockSupport.park(this)
+                continue
+            }
+            try {
+                RandomAccessFile(file, "r").use { raf ->
+                    val buffer = raf.channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+                    replay(buffer)
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to play ${file.name}", e)
+            }
+            injector.endMacro()
+        }
+    }
+
+    private fun replay(buffer: MappedByteBuffer) {
+        if (buffer.remaining() < 8 || buffer.int != MAGIC || buffer.int != VERSION) {
+            Log.w(TAG, "Not a macro file")
+            return
+        }
+
+        val start = System.nanoTime()
+        while (buffer.hasRemaining() && !stopRequested) {
+            if (buffer.remaining() < RECORD_HEADER_SIZE) {
+                Log.w(TAG, "Macro file is truncated")
+                return
+            }
+            val deadline = start + buffer.int * 1_000L
+            val action = buffer.get().toInt()
+            val actionIndex = buffer.get().toInt()
+            val count = buffer.get().toInt()
+            if (count < 0 || count > ids.size || actionIndex < 0 ||
+                    buffer.remaining() < count * POINTER_SIZE) {
+                // The rest of the stream cannot be trusted to line up
+                Log.w(TAG, "Malformed macro record, stopping playback")
+                return
+            }
+            for (i in 0 until count) {
+                ids[i] = buffer.get().toInt()
+                xs[i] = buffer.short.toFloat()
+                ys[i] = buffer.short.toFloat()
+            }
+
+            if (!waitForDeadline(deadline) { stopRequested }) return
+            jitter.record(System.nanoTime() - deadline)
+            injector.applyMacroEvent(action, actionIndex, count, ids, xs, ys, deadline / 1_000_000L)
+        }
+    }
+
+    fun dump(pw: PrintWriter) {
+        jitter.dump(pw)
+    }
+}
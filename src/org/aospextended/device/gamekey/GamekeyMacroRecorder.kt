@@ -0,0 +1,147 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+import android.annotation.SuppressLint
+import android.content.Context
+import android.graphics.Color
+import android.graphics.PixelFormat
+import android.util.Log
+import android.view.Gravity
+import android.view.MotionEvent
+import android.view.View
+import android.view.WindowManager
+import android.widget.Button
+import android.widget.FrameLayout
+import java.io.BufferedOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+
+/**
+ * Records a touch macro from a full-screen overlay.
+ *
+ * Every touch on the overlay is written to [file] in the [GamekeyMacroPlayer]
+ * format as it happens, including batched move samples, with the event times
+ * relative to the first touch. The stop button ends the recording.
+ * Must be used on the main thread.
+ */
+class GamekeyMacroRecorder(
+    private val context: Context,
+    private val file: File,
+    private val onFinished: (File?) -> Unit,
+) {
+    companion object {
+        private const val TAG = "GamekeyMacroRecorder"
+    }
+
+    private val windowManager = context.getSystemService(WindowManager::class.java)
+    private var root: View? = null
+    private var out: DataOutputStream? = null
+    private var firstEventNanos = -1L
+
+    fun start() {
+        if (root != null) return
+        try {
+            file.parentFile?.mkdirs()
+            out = DataOutputStream(BufferedOutputStream(FileOutputStream(file))).apply {
+                writeInt(GamekeyMacroPlayer.MAGIC)
+                writeInt(GamekeyMacroPlayer.VERSION)
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to create ${file.name}", e)
+            onFinished(null)
+            return
+        }
+
+        val layout = FrameLayout(context).apply {
+            setBackgroundColor(Color.argb(0x20, 0, 0, 0))
+            setOnTouchListener(recordingListener)
+            addView(Button(context).apply {
+                text = "Stop"
+                setOnClickListener { stop() }
+            }, FrameLayout.LayoutParams(
+                FrameLayout.LayoutParams.WRAP_CONTENT,
+                FrameLayout.LayoutParams.WRAP_CONTENT,
+                Gravity.TOP or Gravity.CENTER_HORIZONTAL
+            ))
+        }
+        val params = WindowManager.LayoutParams(
+            WindowManager.LayoutParams.MATCH_PARENT,
+            WindowManager.LayoutParams.MATCH_PARENT,
+            WindowManager.LayoutParams.TYPE_APPLICATION_OVERLAY,
+            WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE or
+                    WindowManager.LayoutParams.FLAG_LAYOUT_NO_LIMITS,
+            PixelFormat.TRANSLUCENT
+        ).apply {
+            layoutInDisplayCutoutMode =
+                WindowManager.LayoutParams.LAYOUT_IN_DISPLAY_CUTOUT_MODE_ALWAYS
+            setFitInsetsTypes(0)
+        }
+        windowManager.addView(layout, params)
+        root = layout
+        Log.i(TAG, "Recording ${file.name}")
+    }
+
+    fun stop() {
+        val view = root ?: return
+        root = null
+        windowManager.removeView(view)
+        var result: File? = file
+        try {
+            out?.close()
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to write ${file.name}", e)
+            result = null
+        }
+        out = null
+        Log.i(TAG, "Recorded ${file.name}, ${file.length()} bytes")
+        onFinished(result)
+    }
+
+    @SuppressLint("ClickableViewAccessibility")
+    private val recordingListener = View.OnTouchListener { _, event ->
+        try {
+            val masked = event.actionMasked
+            if (masked == MotionEvent.ACTION_MOVE) {
+                for (h in 0 until event.historySize) {
+                    writeRecord(event, h, event.getHistoricalEventTimeNano(h), masked, 0)
+                }
+            }
+            writeRecord(event, -1, event.eventTimeNanos, masked, event.actionIndex)
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to record touch", e)
+            stop()
+        }
+        true
+    }
+
+    /**
+     * Writes one record; [history] is the historical sample index or -1 for
+     * the current sample.
+     */
+    private fun writeRecord(event: MotionEvent, history: Int, timeNanos: Long, action: Int, actionIndex: Int) {
+        val out = out ?: return
+        if (firstEventNanos < 0) firstEventNanos = timeNanos
+        val count = minOf(event.pointerCount, GamekeyTouchInjector.MAX_POINTERS)
+        out.writeInt(((timeNanos - firstEventNanos) / 1_000L).toInt())
+        out.writeByte(action)
+        out.writeByte(actionIndex)
+        out.writeByte(count)
+        // Display coordinates; historical samples have no raw getter, so they
+        // are shifted by the window's offset on the display
+        val offsetX = event.getRawX(0) - event.getX(0)
+        val offsetY = event.getRawY(0) - event.getY(0)
+        for (i in 0 until count) {
+            val x = if (history < 0) event.getRawX(i) else event.getHistoricalX(i, history) + offsetX
+            val y = if (history < 0) event.getRawY(i) else event.getHistoricalY(i, history) + offsetY
+            out.writeByte(event.getPointerId(i))
+            out.writeShort(x.toInt())
+            out.writeShort(y.toInt())
+        }
+    }
+}
@@ -0,0 +1,24 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+import android.util.Log
+
+/**
+ * Loads libxiaomiparts_jni, which holds the uinput natives of
+ * [GamekeyUinputTouchscreen] and [GamekeyGamepad].
+ */
+internal object GamekeyNative {
+    private const val TAG = "GamekeyNative"
+
+    val loaded = try {
+        System.loadLibrary("xiaomiparts_jni")
+        true
+    } catch (e: UnsatisfiedLinkError) {
+        Log.w(TAG, "Native library unavailable: ${e.message}")
+        false
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+import android.content.SharedPreferences
+import android.view.KeyEvent
+
+/**
+ * Trigger mapping for one app, flattened into primitives so that applying it
+ * on a press is a plain array read.
+ *
+ * Profiles are stored in the regular preferences: every setting has a global
+ * key (e.g. `left_trigger_x`) which forms the default profile, and a game can
+ * override any of them with `<key>@<package>` (e.g. `left_trigger_x@com.foo`).
+ * Profiles are immutable; a change of settings or foreground app swaps in a
+ * new instance.
+ */
+class GamekeyProfile private constructor(
+    val packageName: String?,
+    // Per trigger (0 = left, 1 = right): interleaved x, y, main point first
+    val points: Array<FloatArray>,
+    val swipeDx: FloatArray,
+    val swipeDy: FloatArray,
+    val swipeDurationMs: IntArray,
+    val turboRateHz: IntArray,
+    val touchBackend: Int,
+    val output: Int,
+    // Per trigger: key sent instead of a touch, 0 = none
+    val keyCode: IntArray,
+    // Per trigger: names of macros bound to double click / long press, or null
+    val doubleClickMacro: Array<String?>,
+    val longPressMacro: Array<String?>,
+) {
+    companion object {
+        const val LEFT = 0
+        const val RIGHT = 1
+
+        // How trigger touches reach the input system
+        const val BACKEND_INJECT = 0
+        const val BACKEND_UINPUT = 1
+        const val BACKEND_KERNEL = 2
+
+        private const val KEY_TOUCH_BACKEND = "gamekey_touch_backend"
+
+        // What the gamekey buttons are presented as
+        const val OUTPUT_TOUCH = 0
+        const val OUTPUT_GAMEPAD = 1
+
+        private const val KEY_OUTPUT = "gamekey_output"
+
+        private const val PACKAGE_SEPARATOR = "@"
+
+        private val DEFAULT_X = floatArrayOf(540f, 540f)
+        private val DEFAULT_Y = floatArrayOf(700f, 1700f)
+
+        /**
+         * Returns true if [key] is a setting that is part of a profile, either
+         * global or per package.
+         */
+        fun isProfileKey(key: String?) =
+            key != null && (key.startsWith("left_trigger_") || key.startsWith("right_trigger_") ||
+                    key.startsWith(KEY_TOUCH_BACKEND) || key.startsWith(KEY_OUTPUT))
+
+        /**
+         * Builds the profile for [packageName], or the default profile if it
+         * is null. Not for the press path: this reads and parses preferences.
+         */
+        fun load(prefs: SharedPreferences, packageName: String?): GamekeyProfile {
+            val points = Array(2) { FloatArray(0) }
+            val swipeDx = FloatArray(2)
+            val swipeDy = FloatArray(2)
+            val swipeDurationMs = IntArray(2)
+            val turboRateHz = IntArray(2)
+            val doubleClickMacro = arrayOfNulls<String>(2)
+            val longPressMacro = arrayOfNulls<String>(2)
+            val keyCode = IntArray(2)
+            val all = prefs.all
+
+            for (t in LEFT..RIGHT) {
+                val side = if (t == LEFT) "left" else "right"
+                fun get(key: String) = getString(all, "${side}_trigger_$key", packageName)
+
+                val chord = parsePoints(get("chord_points"))
+                val count = 1 + minOf(chord.size / 2, GamekeyTouchInjector.MAX_POINTS_PER_TRIGGER - 1)
+                points[t] = FloatArray(2 * count).also {
+                    it[0] = get("x")?.toFloatOrNull() ?: DEFAULT_X[t]
+                    it[1] = get("y")?.toFloatOrNull() ?: DEFAULT_Y[t]
+                    System.arraycopy(chord, 0, it, 2, 2 * (count - 1))
+                }
+
+                // "dx,dy,durationMs"
+                val swipe = get("swipe")?.split(',')
+                if (swipe != null && swipe.size == 3) {
+                    val dx = swipe[0].trim().toFloatOrNull()
+                    val dy = swipe[1].trim().toFloatOrNull()
+                    val durationMs = swipe[2].trim().toIntOrNull()
+                    if (dx != null && dy != null && durationMs != null) {
+                        swipeDx[t] = dx
+                        swipeDy[t] = dy
+                        swipeDurationMs[t] = durationMs
+                    }
+                }
+
+                turboRateHz[t] = get("turbo_hz")?.toIntOrNull() ?: 0
+                doubleClickMacro[t] = get("double_click_macro")?.takeIf { it.isNotEmpty() }
+                longPressMacro[t] = get("long_press_macro")?.takeIf { it.isNotEmpty() }
+
+                // A key code, or its name with or without the KEYCODE_ prefix
+                keyCode[t] = get("keycode")?.let {
+                    KeyEvent.keyCodeFromString(if (it.all(Char::isDigit)) it else
+                        it.uppercase().removePrefix("KEYCODE_").let { name -> "KEYCODE_$name" })
+                } ?: KeyEvent.KEYCODE_UNKNOWN
+            }
+
+            // "inject", "uinput" or "kernel"
+            val touchBackend = when (getString(all, KEY_TOUCH_BACKEND, packageName)) {
+                "uinput" -> BACKEND_UINPUT
+                "kernel" -> BACKEND_KERNEL
+                else -> BACKEND_INJECT
+            }
+
+            // "touch" or "gamepad"
+            val output = when (getString(all, KEY_OUTPUT, packageName)) {
+                "gamepad" -> OUTPUT_GAMEPAD
+                else -> OUTPUT_TOUCH
+            }
+
+            return GamekeyProfile(packageName, points, swipeDx, swipeDy, swipeDurationMs, turboRateHz,
+                touchBackend, output, keyCode, doubleClickMacro, longPressMacro)
+        }
+
+        /**
+         * Reads [key] for [packageName], falling back to the global value.
+         * Values may have been stored as strings or as ints.
+         */
+        private fun getString(all: Map<String, *>, key: String, packageName: String?): String? {
+            if (packageName != null) {
+                all["$key$PACKAGE_SEPARATOR$packageName"]?.let { return it.toString().trim() }
+            }
+            return all[key]?.toString()?.trim()
+        }
+
+        /**
+         * Parses "x1,y1;x2,y2" into interleaved coordinates, skipping
+         * malformed entries.
+         */
+        private fun parsePoints(value: String?): FloatArray {
+            if (value.isNullOrBlank()) return FloatArray(0)
+            val points = ArrayList<Float>()
+            for (point in value.split(';')) {
+                val parts = point.split(',')
+                if (parts.size != 2) continue
+                val x = parts[0].trim().toFloatOrNull() ?: continue
+                val y = parts[1].trim().toFloatOrNull() ?: continue
+                points.add(x)
+                points.add(y)
+            }
+            return points.toFloatArray()
+        }
+    }
+}
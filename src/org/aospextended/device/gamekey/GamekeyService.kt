@@ -12,16 +12,24 @@ import android.content.Context
 import android.content.Intent
 import android.content.IntentFilter
 import android.content.SharedPreferences
+import android.graphics.Rect
 import android.media.AudioManager
 import android.os.Build
 import android.os.Handler
+import android.os.HandlerThread
 import android.os.IBinder
-import android.os.Looper
+import android.os.Process
 import android.os.SystemClock
 import android.util.Log
+import android.view.Surface
 import org.aospextended.device.triggers.TriggerService
 import org.aospextended.device.triggers.TriggerUtils
+import org.aospextended.device.util.GameRegistry
+import org.aospextended.device.util.TaskService
 import org.aospextended.device.util.Utils
+import java.io.File
+import java.io.FileDescriptor
+import java.io.PrintWriter
 
 /**
  * Service that monitors trigger hardware via /dev/gamekey and bridges to existing XiaomiParts functionality.
@@ -29,15 +37,45 @@ import org.aospextended.device.util.Utils
  * Combines:
  * - Reference implementation: TriggersReader for hardware detection
  * - Existing XiaomiParts: TriggerUtils for sounds, actions, haptics
+ *
+ * Trigger processing runs on [GamekeyInputThread], not on the main looper.
+ * Slow side effects (slider sounds, ringer mode / DND, trigger actions) run on
+ * a separate lower-priority side thread so they cannot delay an injection.
  */
 class GamekeyService : Service() {
     companion object {
         private const val TAG = "GamekeyService"
+        private const val DEBUG = false
 
         // Double-click detection
         private const val DOUBLE_CLICK_TIMEOUT_MS = 300L
         private const val LONG_PRESS_DURATION_MS = 500L
 
+        private const val EVENT_RING_CAPACITY = 64
+
+        private const val KEY_RELEASE_TIMEOUT_MS = 100L
+
+        // Starts recording a touch macro; EXTRA_MACRO_NAME names it
+        const val ACTION_RECORD_MACRO = "org.aospextended.device.gamekey.RECORD_MACRO"
+        const val EXTRA_MACRO_NAME = "name"
+        // Under filesDir; each macro is its name plus GamekeyMacroPlayer.FILE_SUFFIX
+        const val MACRO_DIR = "macros"
+
+        // Result of handleButtonState
+        private const val EDGE_NONE = 0
+        private const val EDGE_DOWN = 1
+        private const val EDGE_UP = 2
+
+        private const val PREF_ASYNC_INJECTION = "gamekey_async_injection"
+
+        // Display rotation the trigger positions were set up in
+        private const val PREF_REFERENCE_ROTATION = "trigger_reference_rotation"
+
+        // Debounce / anti-ghosting windows, in milliseconds
+        private const val PREF_DEBOUNCE_KEY_MS = "gamekey_debounce_key_ms"
+        private const val PREF_DEBOUNCE_HALL_MS = "gamekey_debounce_hall_ms"
+        private const val PREF_SLIDER_DEAD_TIME_MS = "gamekey_slider_dead_time_ms"
+
         fun startService(context: Context) {
             try {
                 context.startService(Intent(context, GamekeyService::class.java))
@@ -57,16 +95,46 @@ class GamekeyService : Service() {
 
     private lateinit var triggersReader: TriggersReader
     private lateinit var touchInjector: GamekeyTouchInjector
+    private lateinit var displayTransform: GamekeyDisplayTransform
+    private lateinit var macroPlayer: GamekeyMacroPlayer
+    private val kernelTriggers = GamekeyKernelTriggers()
+    private lateinit var gamepad: GamekeyGamepad
+    private lateinit var gameRegistry: GameRegistry
+    private lateinit var keyRemapper: GamekeyKeyRemapper
+    private var macroRecorder: GamekeyMacroRecorder? = null
     private var triggerUtils: TriggerUtils? = null
-    private val handler = Handler(Looper.getMainLooper())
+    private val inputThread = GamekeyInputThread()
+    private lateinit var handler: Handler
+    private val sideThread = HandlerThread("gamekey-side", Process.THREAD_PRIORITY_DEFAULT)
+    private lateinit var sideHandler: Handler
     private lateinit var prefs: SharedPreferences
     
+    private lateinit var eventRing: GamekeyEventRing
+    private lateinit var debounceFilter: GamekeyDebounceFilter
+
+    private val triggersListener = GamekeyEventRing.Listener { frame, changed, timestampNanos ->
+        processTriggerState(frame, changed, timestampNanos)
+    }
+
+    private val slidersListener = GamekeyEventRing.Listener { frame, changed, _ ->
+        processSliderState(frame, changed)
+    }
+
     // Screen state receiver
     private var screenStateReceiver: BroadcastReceiver? = null
 
+    // Trigger profiles by package, loaded and cached on the side thread. The
+    // active one lives in the injector; a foreground app change swaps it.
+    private val profiles = HashMap<String, GamekeyProfile>()
+    private var defaultProfile: GamekeyProfile? = null
+    @Volatile private var foregroundApp: String? = null
+    @Volatile private var profile: GamekeyProfile? = null
+
     // Trigger state tracking
     private var leftTriggerDown = false
     private var rightTriggerDown = false
+
+    // Slider state, only touched on the side thread
     private var leftSliderOpen = false
     private var rightSliderOpen = false
     
@@ -87,9 +155,21 @@ class GamekeyService : Service() {
         Log.i(TAG, "GamekeyService starting")
 
         try {
+            inputThread.start()
+            handler = Handler(inputThread.looper)
+            sideThread.start()
+            sideHandler = Handler(sideThread.looper)
+
             prefs = Utils.getSharedPreferences(this)
             triggerUtils = TriggerUtils.getInstance(this)
-            touchInjector = GamekeyTouchInjector(this)
+            gameRegistry = GameRegistry.getInstance(this)
+            touchInjector = GamekeyTouchInjector(this, prefs.getBoolean(PREF_ASYNC_INJECTION, true))
+            displayTransform = GamekeyDisplayTransform(this, handler, touchInjector)
+            displayTransform.start()
+            macroPlayer = GamekeyMacroPlayer(touchInjector)
+            gamepad = GamekeyGamepad()
+            keyRemapper = GamekeyKeyRemapper(handler, touchInjector)
+            handler.post(updateReferenceRotationRunnable)
             
             setupTriggersReader()
             registerScreenStateReceiver()
@@ -105,32 +185,131 @@ class GamekeyService : Service() {
         Log.i(TAG, "GamekeyService shutting down")
         
         triggersReader.stopReading()
+        prefs.unregisterOnSharedPreferenceChangeListener(prefsListener)
+        TaskService.removeOnForegroundAppChangedListener(foregroundAppListener)
+        TaskService.removeOnTaskBoundsChangedListener(taskBoundsListener)
+        displayTransform.stop()
+        macroRecorder?.stop()
+        macroPlayer.shutdown()
+        gamepad.close()
+        // Lift held remapped keys on the input thread before the pending
+        // repeats are dropped, or the target app keeps the key down
+        handler.runWithScissors({ keyRemapper.releaseAll(SystemClock.uptimeMillis()) },
+            KEY_RELEASE_TIMEOUT_MS)
         touchInjector.shutdown()
         unregisterScreenStateReceiver()
         handler.removeCallbacksAndMessages(null)
+        inputThread.quitSafely()
+        sideThread.quitSafely()
         
         super.onDestroy()
     }
 
     override fun onBind(intent: Intent?): IBinder? = null
 
-    override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int = START_STICKY
+    override fun dump(fd: FileDescriptor, writer: PrintWriter, args: Array<out String>?) {
+        writer.println("GamekeyService:")
+        inputThread.dump(writer)
+        triggersReader.dump(writer)
+        debounceFilter.dump(writer)
+        eventRing.dump(writer)
+        displayTransform.dump(writer)
+        touchInjector.dump(writer)
+        macroPlayer.dump(writer)
+        gamepad.dump(writer)
+        keyRemapper.dump(writer)
+        writer.println("  kernel offload: active=${kernelTriggers.active} failures=${kernelTriggers.failures}")
+    }
+
+    override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
+        if (intent?.action == ACTION_RECORD_MACRO) {
+            recordMacro(intent.getStringExtra(EXTRA_MACRO_NAME))
+        }
+        return START_STICKY
+    }
+
+    /**
+     * Shows the macro recording overlay. Runs on the main thread.
+     */
+    private fun recordMacro(name: String?) {
+        if (macroRecorder != null || name == null) return
+        val file = GamekeyMacroPlayer.macroFile(File(filesDir, MACRO_DIR), name)
+        if (file == null) {
+            Log.w(TAG, "Invalid macro name: $name")
+            return
+        }
+        macroRecorder = GamekeyMacroRecorder(this, file) { macroRecorder = null }.also { it.start() }
+    }
+
+    /**
+     * Plays the macro called [name], if there is one. Like every other touch,
+     * macros only go to game apps, and only with the game's own profile
+     * active; otherwise the caller falls through to the trigger actions.
+     */
+    private fun playMacro(name: String?): Boolean {
+        val foreground = foregroundApp
+        if (name == null || foreground == null || profile?.packageName != foreground ||
+                !gameRegistry.isGameApp(foreground)) return false
+        val file = GamekeyMacroPlayer.macroFile(File(filesDir, MACRO_DIR), name)
+        if (file == null || !file.exists()) return false
+        macroPlayer.play(file)
+        return true
+    }
 
     private fun setupTriggersReader() {
-        triggersReader = TriggersReader { hallLeft, hallRight, keyLeft, keyRight ->
-            handler.post {
-                processTriggerState(hallLeft, hallRight, keyLeft, keyRight)
-            }
+        // Frames are published and consumed on the input thread, in place
+        eventRing = GamekeyEventRing(EVENT_RING_CAPACITY, inputThread.looper)
+        eventRing.addConsumer(inputThread.looper, triggersListener)
+        // Slider side effects (sounds, ringer, DND) must never hold back triggers
+        eventRing.addConsumer(sideThread.looper, slidersListener, blocking = false)
+        debounceFilter = GamekeyDebounceFilter(inputThread.looper, eventRing)
+        handler.post(updateDebounceRunnable)
+        foregroundApp = TaskService.getForegroundApp()
+        sideHandler.post(reloadProfilesRunnable)
+        prefs.registerOnSharedPreferenceChangeListener(prefsListener)
+        TaskService.addOnForegroundAppChangedListener(foregroundAppListener)
+        TaskService.addOnTaskBoundsChangedListener(taskBoundsListener)
+        handler.post {
+            val bounds = Rect()
+            displayTransform.setTaskBounds(TaskService.getTaskBounds(bounds), bounds)
         }
+        triggersReader = TriggersReader(inputThread.looper, debounceFilter)
         triggersReader.startReading()
     }
 
+    private val updateDebounceRunnable = Runnable {
+        debounceFilter.setWindows(
+            prefs.getInt(PREF_DEBOUNCE_KEY_MS, GamekeyDebounceFilter.DEFAULT_KEY_DEBOUNCE_MS),
+            prefs.getInt(PREF_DEBOUNCE_HALL_MS, GamekeyDebounceFilter.DEFAULT_HALL_DEBOUNCE_MS),
+            prefs.getInt(PREF_SLIDER_DEAD_TIME_MS, GamekeyDebounceFilter.DEFAULT_SLIDER_DEAD_TIME_MS)
+        )
+    }
+
+    private val updateReferenceRotationRunnable = Runnable {
+        displayTransform.setReferenceRotation(prefs.getInt(PREF_REFERENCE_ROTATION, Surface.ROTATION_90))
+    }
+
+    private val prefsListener = SharedPreferences.OnSharedPreferenceChangeListener { _, key ->
+        when (key) {
+            PREF_DEBOUNCE_KEY_MS, PREF_DEBOUNCE_HALL_MS, PREF_SLIDER_DEAD_TIME_MS ->
+                handler.post(updateDebounceRunnable)
+            PREF_REFERENCE_ROTATION ->
+                handler.post(updateReferenceRotationRunnable)
+            else -> if (GamekeyProfile.isProfileKey(key)) {
+                sideHandler.removeCallbacks(reloadProfilesRunnable)
+                sideHandler.post(reloadProfilesRunnable)
+            }
+        }
+    }
+
     private fun registerScreenStateReceiver() {
         screenStateReceiver = object : BroadcastReceiver() {
             override fun onReceive(context: Context, intent: Intent) {
                 when (intent.action) {
                     Intent.ACTION_SCREEN_OFF -> {
                         Log.d(TAG, "Screen off - canceling touches")
+                        macroPlayer.stop()
+                        keyRemapper.releaseAll(SystemClock.uptimeMillis())
                         touchInjector.cancelAll()
                         leftTriggerDown = false
                         rightTriggerDown = false
@@ -143,10 +322,11 @@ class GamekeyService : Service() {
             addAction(Intent.ACTION_SCREEN_OFF)
         }
         
+        // Deliver on the input thread so trigger state is only touched there
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-            registerReceiver(screenStateReceiver, filter, Context.RECEIVER_EXPORTED)
+            registerReceiver(screenStateReceiver, filter, null, handler, Context.RECEIVER_EXPORTED)
         } else {
-            registerReceiver(screenStateReceiver, filter)
+            registerReceiver(screenStateReceiver, filter, null, handler)
         }
     }
 
@@ -155,36 +335,68 @@ class GamekeyService : Service() {
         screenStateReceiver = null
     }
 
+    private val foregroundAppListener = TaskService.OnForegroundAppChangedListener { packageName ->
+        foregroundApp = packageName
+        sideHandler.removeCallbacks(selectProfileRunnable)
+        sideHandler.post(selectProfileRunnable)
+    }
+
+    private val selectProfileRunnable = Runnable { selectProfile() }
+
+    // Cached for the next press; never queried while pressing
+    private val taskBoundsListener = TaskService.OnTaskBoundsChangedListener { displayId, bounds ->
+        handler.post { displayTransform.setTaskBounds(displayId, bounds) }
+    }
+
+    private val reloadProfilesRunnable = Runnable {
+        profiles.clear()
+        defaultProfile = null
+        selectProfile()
+    }
+
     /**
-     * Get trigger position from SharedPreferences
+     * Hands the profile of the foreground app to the injector, loading and
+     * caching it on first use.
      */
-    private fun getTriggerX(isLeft: Boolean): Float {
-        val key = if (isLeft) "left_trigger_x" else "right_trigger_x"
-        val default = if (isLeft) "540" else "540"
-        return prefs.getString(key, default)?.toFloatOrNull() ?: 540f
-    }
+    private fun selectProfile() {
+        val packageName = foregroundApp
+        val profile = if (packageName != null) {
+            profiles.getOrPut(packageName) { GamekeyProfile.load(prefs, packageName) }
+        } else {
+            defaultProfile ?: GamekeyProfile.load(prefs, null).also { defaultProfile = it }
+        }
+        this.profile = profile
+        touchInjector.setProfile(profile)
 
-    private fun getTriggerY(isLeft: Boolean): Float {
-        val key = if (isLeft) "left_trigger_y" else "right_trigger_y"
-        val default = if (isLeft) "700" else "1700"
-        return prefs.getString(key, default)?.toFloatOrNull() ?: if (isLeft) 700f else 1700f
+        // Without uinput the triggers keep touching instead
+        if (profile.output == GamekeyProfile.OUTPUT_GAMEPAD && gamepad.open()) {
+            gamepad.setButton(GamekeyGamepad.BUTTON_LEFT_SLIDER, leftSliderOpen)
+            gamepad.setButton(GamekeyGamepad.BUTTON_RIGHT_SLIDER, rightSliderOpen)
+        } else {
+            gamepad.close()
+        }
+
+        // Falls back to injection if the driver does not take the positions
+        val defaults = defaultProfile ?: GamekeyProfile.load(prefs, null).also { defaultProfile = it }
+        if (profile.touchBackend == GamekeyProfile.BACKEND_KERNEL) {
+            kernelTriggers.apply(profile, defaults)
+        } else {
+            kernelTriggers.release(defaults)
+        }
     }
 
     /**
-     * Process trigger state changes from TriggersReader.
-     * 
-     * - hallLeft/hallRight: slider open/closed state
-     * - keyLeft/keyRight: button press state
+     * Process slider state changes from the event ring, on the side thread.
+     *
+     * - frame: current TriggersReader frame bitmask
+     * - changed: bits that flipped since the previous frame
      */
-    private fun processTriggerState(
-        hallLeft: Boolean,
-        hallRight: Boolean,
-        keyLeft: Boolean,
-        keyRight: Boolean
-    ) {
+    private fun processSliderState(frame: Int, changed: Int) {
         // Handle left slider state change (for sounds + alert slider)
-        if (hallLeft != leftSliderOpen) {
+        if (changed and TriggersReader.HALL_LEFT != 0) {
+            val hallLeft = frame and TriggersReader.HALL_LEFT != 0
             leftSliderOpen = hallLeft
+            gamepad.setButton(GamekeyGamepad.BUTTON_LEFT_SLIDER, hallLeft)
             triggerUtils?.triggerAction(true, hallLeft)
             
             // Alert slider: left slider triggers selected mode
@@ -197,22 +409,145 @@ class GamekeyService : Service() {
         }
         
         // Handle right slider state change (for sounds)
-        if (hallRight != rightSliderOpen) {
+        if (changed and TriggersReader.HALL_RIGHT != 0) {
+            val hallRight = frame and TriggersReader.HALL_RIGHT != 0
             rightSliderOpen = hallRight
+            gamepad.setButton(GamekeyGamepad.BUTTON_RIGHT_SLIDER, hallRight)
             triggerUtils?.triggerAction(false, hallRight)
             Log.d(TAG, "Right slider: $hallRight")
         }
         
         // NOTE: Auto-show trigger overlay removed - user should enable it manually from settings
-        
+    }
+
+    /**
+     * Process trigger button changes from the event ring, on the input thread.
+     * 
+     * - frame: current TriggersReader frame bitmask
+     * - changed: bits that flipped since the previous frame
+     * - timestampNanos: elapsedRealtimeNanos() at which the frame was read
+     */
+    private fun processTriggerState(frame: Int, changed: Int, timestampNanos: Long) {
         // Handle button presses
-        handleButtonState(true, keyLeft)
-        handleButtonState(false, keyRight)
+        var pressed = 0
+        var released = 0
+        if (changed and TriggersReader.KEY_LEFT != 0) {
+            when (handleButtonState(true, frame and TriggersReader.KEY_LEFT != 0, timestampNanos)) {
+                EDGE_DOWN -> pressed = pressed or TriggersReader.KEY_LEFT
+                EDGE_UP -> released = released or TriggersReader.KEY_LEFT
+            }
+        }
+        if (changed and TriggersReader.KEY_RIGHT != 0) {
+            when (handleButtonState(false, frame and TriggersReader.KEY_RIGHT != 0, timestampNanos)) {
+                EDGE_DOWN -> pressed = pressed or TriggersReader.KEY_RIGHT
+                EDGE_UP -> released = released or TriggersReader.KEY_RIGHT
+            }
+        }
+        if (pressed == 0 && released == 0) return
+
+        // Only inject touch events in game apps; releases always go through so
+        // a touch is never left down when the foreground app changes.
+        if (pressed != 0) {
+            if (profile?.output == GamekeyProfile.OUTPUT_GAMEPAD && gamepad.isOpen) {
+                // Presented as controller buttons instead of touches
+                if (pressed and TriggersReader.KEY_LEFT != 0) {
+                    gamepad.setButton(GamekeyGamepad.BUTTON_LEFT_TRIGGER, true)
+                }
+                if (pressed and TriggersReader.KEY_RIGHT != 0) {
+                    gamepad.setButton(GamekeyGamepad.BUTTON_RIGHT_TRIGGER, true)
+                }
+                pressed = 0
+            } else if (!gameRegistry.isGameApp()) {
+                if (DEBUG) Log.d(TAG, "Trigger DOWN - NOT GAME APP, skipping touch injection")
+                pressed = 0
+            } else {
+                pressed = pressRemappedKeys(pressed, timestampNanos)
+                // The touch driver presses for us
+                if (kernelTriggers.active) pressed = 0
+            }
+        }
+        if (released != 0) {
+            val eventTime = GamekeyTouchInjector.toUptimeMillis(timestampNanos)
+            if (released and TriggersReader.KEY_LEFT != 0) {
+                keyRemapper.release(GamekeyProfile.LEFT, eventTime)
+            }
+            if (released and TriggersReader.KEY_RIGHT != 0) {
+                keyRemapper.release(GamekeyProfile.RIGHT, eventTime)
+            }
+        }
+        if (released and TriggersReader.KEY_LEFT != 0) {
+            gamepad.setButton(GamekeyGamepad.BUTTON_LEFT_TRIGGER, false)
+        }
+        if (released and TriggersReader.KEY_RIGHT != 0) {
+            gamepad.setButton(GamekeyGamepad.BUTTON_RIGHT_TRIGGER, false)
+        }
+        touchInjector.applyFrame(pressed, released, timestampNanos)
     }
 
-    private fun handleButtonState(isLeft: Boolean, pressed: Boolean) {
+    /**
+     * Sends the mapped key for every pressed trigger that has one and returns
+     * the presses that are left for touch injection.
+     */
+    private fun pressRemappedKeys(pressed: Int, timestampNanos: Long): Int {
+        val keyCode = profile?.keyCode ?: return pressed
+        var remaining = pressed
+        val eventTime = GamekeyTouchInjector.toUptimeMillis(timestampNanos)
+        if (pressed and TriggersReader.KEY_LEFT != 0 && keyCode[GamekeyProfile.LEFT] != 0) {
+            keyRemapper.press(GamekeyProfile.LEFT, keyCode[GamekeyProfile.LEFT], eventTime)
+            remaining = remaining and TriggersReader.KEY_LEFT.inv()
+        }
+        if (pressed and TriggersReader.KEY_RIGHT != 0 && keyCode[GamekeyProfile.RIGHT] != 0) {
+            keyRemapper.press(GamekeyProfile.RIGHT, keyCode[GamekeyProfile.RIGHT], eventTime)
+            remaining = remaining and TriggersReader.KEY_RIGHT.inv()
+        }
+        return remaining
+    }
+
+    // Preallocated so a press does not allocate
+    private val leftLongPressCheck = Runnable {
+        if (leftTriggerDown && !leftLongPressHandled) {
+            leftLongPressHandled = true
+            sideHandler.post(leftLongPressAction)
+        }
+    }
+    private val rightLongPressCheck = Runnable {
+        if (rightTriggerDown && !rightLongPressHandled) {
+            rightLongPressHandled = true
+            sideHandler.post(rightLongPressAction)
+        }
+    }
+    private val leftLongPressAction = Runnable {
+        Log.d(TAG, "Left long press triggered")
+        if (!playMacro(profile?.longPressMacro?.get(GamekeyProfile.LEFT))) {
+            triggerUtils?.handleLongPress(true)
+        }
+    }
+    private val rightLongPressAction = Runnable {
+        Log.d(TAG, "Right long press triggered")
+        if (!playMacro(profile?.longPressMacro?.get(GamekeyProfile.RIGHT))) {
+            triggerUtils?.handleLongPress(false)
+        }
+    }
+    private val leftDoubleClickAction = Runnable {
+        Log.d(TAG, "Left double click triggered")
+        if (!playMacro(profile?.doubleClickMacro?.get(GamekeyProfile.LEFT))) {
+            triggerUtils?.handleDoubleClick(true)
+        }
+    }
+    private val rightDoubleClickAction = Runnable {
+        Log.d(TAG, "Right double click triggered")
+        if (!playMacro(profile?.doubleClickMacro?.get(GamekeyProfile.RIGHT))) {
+            triggerUtils?.handleDoubleClick(false)
+        }
+    }
+
+    /**
+     * Updates click / long-press tracking for one key and returns which edge,
+     * if any, it saw.
+     */
+    private fun handleButtonState(isLeft: Boolean, pressed: Boolean, timestampNanos: Long): Int {
         val wasDown = if (isLeft) leftTriggerDown else rightTriggerDown
-        val now = SystemClock.uptimeMillis()
+        val now = GamekeyTouchInjector.toUptimeMillis(timestampNanos)
         
         if (pressed && !wasDown) {
             // Button just pressed
@@ -230,13 +565,8 @@ class GamekeyService : Service() {
                 lastLeftClickTime = now
                 
                 // Schedule long-press check
-                handler.postDelayed({
-                    if (leftTriggerDown && !leftLongPressHandled) {
-                        leftLongPressHandled = true
-                        triggerUtils?.handleLongPress(true)
-                        Log.d(TAG, "Left long press triggered")
-                    }
-                }, LONG_PRESS_DURATION_MS)
+                handler.removeCallbacks(leftLongPressCheck)
+                handler.postDelayed(leftLongPressCheck, LONG_PRESS_DURATION_MS)
             } else {
                 rightTriggerDown = true
                 rightPressStartTime = now
@@ -251,30 +581,12 @@ class GamekeyService : Service() {
                 lastRightClickTime = now
                 
                 // Schedule long-press check
-                handler.postDelayed({
-                    if (rightTriggerDown && !rightLongPressHandled) {
-                        rightLongPressHandled = true
-                        triggerUtils?.handleLongPress(false)
-                        Log.d(TAG, "Right long press triggered")
-                    }
-                }, LONG_PRESS_DURATION_MS)
-            }
-            
-            // Only inject touch events in game apps
-            if (Utils.isGameApp(this)) {
-                val x = getTriggerX(isLeft)
-                val y = getTriggerY(isLeft)
-                
-                if (isLeft) {
-                    touchInjector.leftTriggerDown(x, y)
-                } else {
-                    touchInjector.rightTriggerDown(x, y)
-                }
-                Log.d(TAG, "${if (isLeft) "Left" else "Right"} trigger DOWN at ($x, $y) - GAME APP")
-            } else {
-                Log.d(TAG, "${if (isLeft) "Left" else "Right"} trigger DOWN - NOT GAME APP, skipping touch injection")
+                handler.removeCallbacks(rightLongPressCheck)
+                handler.postDelayed(rightLongPressCheck, LONG_PRESS_DURATION_MS)
             }
             
+            if (DEBUG) Log.d(TAG, "${if (isLeft) "Left" else "Right"} trigger DOWN")
+            return EDGE_DOWN
         } else if (!pressed && wasDown) {
             // Button just released
             if (isLeft) {
@@ -282,32 +594,23 @@ class GamekeyService : Service() {
                 
                 // Check for double-click on release (if not long-pressed)
                 if (!leftLongPressHandled && leftClickCount >= 2) {
-                    triggerUtils?.handleDoubleClick(true)
+                    sideHandler.post(leftDoubleClickAction)
                     leftClickCount = 0
-                    Log.d(TAG, "Left double click triggered")
                 }
             } else {
                 rightTriggerDown = false
                 
                 // Check for double-click on release (if not long-pressed)
                 if (!rightLongPressHandled && rightClickCount >= 2) {
-                    triggerUtils?.handleDoubleClick(false)
+                    sideHandler.post(rightDoubleClickAction)
                     rightClickCount = 0
-                    Log.d(TAG, "Right double click triggered")
-                }
-            }
-            
-            // Only send UP if we were in a game app (touch was injected)
-            if (Utils.isGameApp(this)) {
-                if (isLeft) {
-                    touchInjector.leftTriggerUp()
-                } else {
-                    touchInjector.rightTriggerUp()
                 }
             }
             
-            Log.d(TAG, "${if (isLeft) "Left" else "Right"} trigger UP")
+            if (DEBUG) Log.d(TAG, "${if (isLeft) "Left" else "Right"} trigger UP")
+            return EDGE_UP
         }
+        return EDGE_NONE
     }
 
     /**
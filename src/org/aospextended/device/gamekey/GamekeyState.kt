@@ -0,0 +1,46 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+/**
+ * Latest frame read from /dev/gamekey, published by [TriggersReader].
+ *
+ * Any thread in the process can read it without doing I/O or competing with
+ * the reader's fd for frames. The frame and its validity are kept in a single
+ * volatile int, so a reader never sees a torn snapshot.
+ */
+object GamekeyState {
+    private const val VALID = 1 shl 31
+
+    @Volatile private var snapshot = 0
+
+    /**
+     * Whether the reader is connected and has read at least one frame.
+     */
+    @JvmStatic
+    fun isAvailable(): Boolean = snapshot and VALID != 0
+
+    /**
+     * The latest frame bitmask, see [TriggersReader.HALL_LEFT] and friends.
+     */
+    @JvmStatic
+    fun getFrame(): Int = snapshot and VALID.inv()
+
+    /**
+     * @param index byte index in the gamekey frame: 0 hall_left, 1 hall_right,
+     *        2 key_left, 3 key_right
+     */
+    @JvmStatic
+    fun isSet(index: Int): Boolean = snapshot and (1 shl index) != 0
+
+    internal fun publish(frame: Int) {
+        snapshot = frame or VALID
+    }
+
+    internal fun invalidate() {
+        snapshot = 0
+    }
+}
@@ -9,257 +9,665 @@ import android.content.Context
 import android.hardware.input.InputManager
 import android.os.SystemClock
 import android.util.Log
+import android.view.Choreographer
+import android.view.Display
 import android.view.InputDevice
 import android.view.InputEvent
+import android.view.KeyEvent
 import android.view.MotionEvent
+import androidx.annotation.VisibleForTesting
+import java.io.PrintWriter
 
 /**
  * Injects multi-touch events for trigger buttons.
- * 
+ *
  * Properly supports pressing both triggers simultaneously by using
  * ACTION_POINTER_DOWN/UP for the second touch while maintaining the first.
+ * Each trigger can hold up to [MAX_POINTS_PER_TRIGGER] points, with pointer
+ * ids handed out from a shared table. With [asyncInjection] events are
+ * injected in order on a [GamekeyInjectionQueue], otherwise inline with
+ * WAIT_FOR_FINISH.
  */
-class GamekeyTouchInjector(context: Context) {
+class GamekeyTouchInjector(private val context: Context, asyncInjection: Boolean = true) {
     companion object {
         private const val TAG = "GamekeyTouchInjector"
         // INJECT_INPUT_EVENT_MODE_WAIT_FOR_FINISH = 2
         private const val INJECT_MODE = 2
+
+        private const val INJECTION_QUEUE_CAPACITY = 64
+
+        const val MAX_POINTERS = 10
+        const val MAX_POINTS_PER_TRIGGER = 4
+        const val MAX_TURBO_RATE_HZ = 60
+
+        // Index into the per-trigger tables
+        private const val LEFT = 0
+        private const val RIGHT = 1
+
+        private val IDENTITY = floatArrayOf(1f, 0f, 0f, 0f, 1f, 0f)
+
+        /**
+         * Converts an elapsedRealtimeNanos() timestamp into the uptimeMillis()
+         * time base used by input events.
+         */
+        fun toUptimeMillis(elapsedRealtimeNanos: Long): Long {
+            val deepSleepNanos = SystemClock.elapsedRealtimeNanos() - SystemClock.uptimeNanos()
+            return (elapsedRealtimeNanos - deepSleepNanos) / 1_000_000L
+        }
     }
 
     private val inputManager = context.getSystemService(Context.INPUT_SERVICE) as InputManager
-    
-    // Pointer ID 0 = left trigger, Pointer ID 1 = right trigger
-    private var leftActive = false
-    private var leftX = 0f
-    private var leftY = 0f
-    private var leftDownTime = 0L
-    
-    private var rightActive = false
-    private var rightX = 0f
-    private var rightY = 0f
-    private var rightDownTime = 0L
-    
-    // Shared down time for multi-touch sequence
-    private var multiTouchDownTime = 0L
-    
+    private val injectionQueue =
+        if (asyncInjection) GamekeyInjectionQueue(inputManager, INJECTION_QUEUE_CAPACITY) else null
+
+    // Trigger touch points, from the current profile
+    private val triggerPointCount = IntArray(2)
+    private val triggerX = Array(2) { FloatArray(MAX_POINTS_PER_TRIGGER) }
+    private val triggerY = Array(2) { FloatArray(MAX_POINTS_PER_TRIGGER) }
+
+    // Natural orientation to display transform: x' = m0 x + m1 y + m2,
+    // y' = m3 x + m4 y + m5; with swapTriggers each key uses the other's points
+    private val transform = floatArrayOf(1f, 0f, 0f, 0f, 1f, 0f)
+    private var swapTriggers = false
+    // Natural orientation to the same screen position in the uinput device's
+    // natural coordinates (InputReader applies the rotation itself)
+    private val naturalTransform = floatArrayOf(1f, 0f, 0f, 0f, 1f, 0f)
+    // Display to natural orientation, for macro points on the uinput backend
+    private val displayToNatural = floatArrayOf(1f, 0f, 0f, 0f, 1f, 0f)
+    // Display of the game's task, used for every gesture started from now on
+    private var displayId = Display.DEFAULT_DISPLAY
+
+    // Display coordinates of each trigger's points while it is down
+    private val downX = Array(2) { FloatArray(MAX_POINTS_PER_TRIGGER) }
+    private val downY = Array(2) { FloatArray(MAX_POINTS_PER_TRIGGER) }
+
+    // Pointer ids held by each trigger while it is down
+    private val triggerPointerIds = Array(2) { IntArray(MAX_POINTS_PER_TRIGGER) }
+    private val triggerPointerCount = IntArray(2)
+    private var usedPointerIds = 0
+
+    // Swipe path per trigger, relative to its first point; duration 0 = tap
+    private val swipeDx = FloatArray(2)
+    private val swipeDy = FloatArray(2)
+    private val swipeDurationNanos = LongArray(2)
+    private val swipeStartNanos = LongArray(2)
+    private val downSwipeDx = FloatArray(2)
+    private val downSwipeDy = FloatArray(2)
+    private val downSwipeNanos = LongArray(2)
+    private var swipingTriggers = 0
+    private var frameCallbackPosted = false
+    private var choreographer: Choreographer? = null
+    private val swipeFrameCallback = Choreographer.FrameCallback { frameTimeNanos ->
+        onSwipeFrame(frameTimeNanos)
+    }
+
+    // Turbo tap rate per trigger; 0 = off
+    private val turboRateHz = FloatArray(2)
+    private val turboGeneration = IntArray(2)
+    private val turboScheduler = GamekeyTurboScheduler { trigger, generation, down, timeNanos ->
+        onTurboPhase(trigger, generation, down, timeNanos)
+    }
+
+    // Pointers currently down, sorted by pointer id
+    private val activeIds = IntArray(MAX_POINTERS)
+    private val activeX = FloatArray(MAX_POINTERS)
+    private val activeY = FloatArray(MAX_POINTERS)
+    private var activeCount = 0
+
+    // Shared down time and target display for multi-touch sequence
+    private var gestureDownTime = 0L
+    private var gestureDisplayId = Display.DEFAULT_DISPLAY
+
     private val lock = Any()
 
+    // Injector pointer id of each recorded macro pointer id, -1 if not down
+    private val macroPointerIds = IntArray(MAX_POINTERS) { -1 }
+
+    // Virtual touchscreen while the uinput backend is selected
+    private var uinputTouchscreen: GamekeyUinputTouchscreen? = null
+
+    // Preallocated pointer data, filled from the active pointers per event
+    private val pointerProperties = Array(MAX_POINTERS) {
+        MotionEvent.PointerProperties().apply {
+            toolType = MotionEvent.TOOL_TYPE_FINGER
+        }
+    }
+    private val pointerCoords = Array(MAX_POINTERS) {
+        MotionEvent.PointerCoords().apply {
+            pressure = 1.0f
+            size = 1.0f
+        }
+    }
+
+    // Capture of the frame currently being injected, for latency accounting
+    private var captureNanos = 0L
+
+    private val injectLatency = LatencyStats("capture-to-inject latency")
+
     /**
-     * Press left trigger at (x,y)
+     * Sets where the given trigger touches the next time it is pressed.
+     * @param trigger [TriggersReader.KEY_LEFT] or [TriggersReader.KEY_RIGHT]
+     * @param points interleaved x, y pairs
+     * @param count number of points, at most [MAX_POINTS_PER_TRIGGER]
      */
-    fun leftTriggerDown(x: Float, y: Float) {
+    fun setTriggerPoints(trigger: Int, points: FloatArray, count: Int) {
         synchronized(lock) {
-            if (leftActive) return
-            leftActive = true
-            leftX = x
-            leftY = y
-            
-            val now = SystemClock.uptimeMillis()
-            
-            if (!rightActive) {
-                // First finger down - use ACTION_DOWN
-                multiTouchDownTime = now
-                leftDownTime = now
-                injectSingleTouch(MotionEvent.ACTION_DOWN, multiTouchDownTime, now, leftX, leftY, 0)
-            } else {
-                // Second finger down - use ACTION_POINTER_DOWN with index 0 (left is pointer 0)
-                leftDownTime = now
-                injectMultiTouch(
-                    MotionEvent.ACTION_POINTER_DOWN or (0 shl MotionEvent.ACTION_POINTER_INDEX_SHIFT),
-                    multiTouchDownTime, now
-                )
+            val t = if (trigger == TriggersReader.KEY_LEFT) LEFT else RIGHT
+            val n = minOf(count, MAX_POINTS_PER_TRIGGER, points.size / 2)
+            for (i in 0 until n) {
+                triggerX[t][i] = points[2 * i]
+                triggerY[t][i] = points[2 * i + 1]
             }
-            Log.d(TAG, "Left DOWN at ($x, $y), rightActive=$rightActive")
+            triggerPointCount[t] = n
+        }
+    }
+
+    /**
+     * Switches to the trigger mapping of [profile]. All settings are replaced
+     * under the lock at once, so a press never sees half of a profile.
+     *
+     * The profile can select the [GamekeyUinputTouchscreen] backend, which
+     * writes the same pointer table to a virtual touchscreen; if the device
+     * cannot be created or written, injection is used again.
+     */
+    fun setProfile(profile: GamekeyProfile) {
+        synchronized(lock) {
+            setBackend(profile.touchBackend)
+            for (t in LEFT..RIGHT) {
+                val trigger = if (t == LEFT) TriggersReader.KEY_LEFT else TriggersReader.KEY_RIGHT
+                val points = profile.points[t]
+                setTriggerPoints(trigger, points, points.size / 2)
+                setTriggerSwipe(trigger, profile.swipeDx[t], profile.swipeDy[t], profile.swipeDurationMs[t])
+                setTriggerTurbo(trigger, profile.turboRateHz[t])
+            }
+        }
+    }
+
+    private fun setBackend(backend: Int) {
+        val useUinput = backend == GamekeyProfile.BACKEND_UINPUT
+        if (useUinput == (uinputTouchscreen != null)) return
+
+        // Lift everything on the backend that put it down
+        cancelAll()
+        if (useUinput) {
+            uinputTouchscreen = GamekeyUinputTouchscreen.create(context)
+            if (uinputTouchscreen == null) {
+                Log.w(TAG, "uinput touchscreen unavailable, using injection")
+            }
+        } else {
+            uinputTouchscreen?.close()
+            uinputTouchscreen = null
+        }
+    }
+
+    /**
+     * Sets the transform applied from the next press on. Profile coordinates
+     * are in the display's natural orientation; [matrix] (2x3 affine,
+     * row-major, maintained by [GamekeyDisplayTransform]) maps them to the
+     * current rotation and the game's task bounds. Points are mapped when a
+     * trigger goes down and kept for as long as it is held.
+     *
+     * [naturalMatrix] lands on the same screen position through the uinput
+     * backend, [displayToNaturalMatrix] is the inverse of the current
+     * rotation. With [swapTriggers] the left key presses the right trigger's
+     * points and vice versa. Gestures started from then on go to [displayId].
+     */
+    fun setTransform(matrix: FloatArray, naturalMatrix: FloatArray,
+                     displayToNaturalMatrix: FloatArray, swapTriggers: Boolean, displayId: Int) {
+        synchronized(lock) {
+            System.arraycopy(matrix, 0, transform, 0, 6)
+            System.arraycopy(naturalMatrix, 0, naturalTransform, 0, 6)
+            System.arraycopy(displayToNaturalMatrix, 0, displayToNatural, 0, 6)
+            this.swapTriggers = swapTriggers
+            this.displayId = displayId
+        }
+    }
+
+    /**
+     * Makes the given trigger drag its first point by ([dx], [dy]) over
+     * [durationMs] while held. A duration of 0 turns swiping off.
+     *
+     * The path is followed with one ACTION_MOVE per display frame, paced by
+     * [Choreographer] on the thread calling [applyFrame], which must be a
+     * looper thread.
+     */
+    fun setTriggerSwipe(trigger: Int, dx: Float, dy: Float, durationMs: Int) {
+        synchronized(lock) {
+            val t = if (trigger == TriggersReader.KEY_LEFT) LEFT else RIGHT
+            swipeDx[t] = dx
+            swipeDy[t] = dy
+            swipeDurationNanos[t] = durationMs.coerceAtLeast(0) * 1_000_000L
         }
     }
 
     /**
-     * Release left trigger
+     * Makes the given trigger tap repeatedly at [rateHz] while held, up to
+     * [MAX_TURBO_RATE_HZ]. A rate of 0 turns turbo off.
+     *
+     * Taps are clocked by a [GamekeyTurboScheduler] and are ordinary
+     * POINTER_UP/DOWN transitions of the gesture, so a pointer held by the
+     * other trigger stays down throughout.
      */
-    fun leftTriggerUp() {
+    fun setTriggerTurbo(trigger: Int, rateHz: Int) {
         synchronized(lock) {
-            if (!leftActive) return
-            
-            val now = SystemClock.uptimeMillis()
-            
-            if (rightActive) {
-                // Left going up while right still down - use ACTION_POINTER_UP
-                injectMultiTouch(
-                    MotionEvent.ACTION_POINTER_UP or (0 shl MotionEvent.ACTION_POINTER_INDEX_SHIFT),
-                    multiTouchDownTime, now
-                )
-            } else {
-                // Only left was down - use ACTION_UP
-                injectSingleTouch(MotionEvent.ACTION_UP, leftDownTime, now, leftX, leftY, 0)
+            val t = if (trigger == TriggersReader.KEY_LEFT) LEFT else RIGHT
+            turboRateHz[t] = rateHz.coerceIn(0, MAX_TURBO_RATE_HZ).toFloat()
+        }
+    }
+
+    /**
+     * Applies the trigger edges of one gamekey frame. All transitions of the
+     * frame are built in one pass under the lock and queued back-to-back, so
+     * the second finger of a chord is not an injection round-trip behind.
+     * The capture time is used as event time, so queueing delay stays
+     * visible to the game; the capture-to-injection gap is recorded.
+     * @param pressed trigger bits ([TriggersReader.KEY_LEFT]/[TriggersReader.KEY_RIGHT]) that went down
+     * @param released trigger bits that went up
+     * @param captureNanos elapsedRealtimeNanos() at which the frame was read
+     */
+    fun applyFrame(pressed: Int, released: Int, captureNanos: Long) {
+        synchronized(lock) {
+            this.captureNanos = captureNanos
+            val eventTime = toUptimeMillis(captureNanos)
+
+            // Downs first: a frame that swaps one trigger for the other then
+            // stays a single gesture instead of an UP followed by a new DOWN.
+            if (pressed and TriggersReader.KEY_LEFT != 0) {
+                triggerDown(LEFT, eventTime)
+            }
+            if (pressed and TriggersReader.KEY_RIGHT != 0) {
+                triggerDown(RIGHT, eventTime)
+            }
+            if (released and TriggersReader.KEY_LEFT != 0) {
+                triggerUp(LEFT, eventTime)
+            }
+            if (released and TriggersReader.KEY_RIGHT != 0) {
+                triggerUp(RIGHT, eventTime)
             }
-            
-            leftActive = false
-            leftDownTime = 0L
-            Log.d(TAG, "Left UP, rightActive=$rightActive")
         }
     }
 
+    private fun triggerDown(t: Int, eventTime: Long) {
+        if (triggerPointerCount[t] > 0) return
+        // Settings of the trigger this key stands for in the current rotation
+        val s = if (swapTriggers) 1 - t else t
+        // InputReader rotates the virtual touchscreen's natural coordinates
+        val m = if (usesUinput()) naturalTransform else transform
+        val ids = triggerPointerIds[t]
+        for (i in 0 until triggerPointCount[s]) {
+            val id = allocatePointerId()
+            if (id < 0) break
+            val x = triggerX[s][i]
+            val y = triggerY[s][i]
+            downX[t][i] = m[0] * x + m[1] * y + m[2]
+            downY[t][i] = m[3] * x + m[4] * y + m[5]
+            ids[triggerPointerCount[t]] = id
+            pointerDown(id, downX[t][i], downY[t][i], eventTime)
+            triggerPointerCount[t]++
+        }
+        if (triggerPointerCount[t] > 0 && turboRateHz[s] > 0) {
+            turboGeneration[t] = turboScheduler.start(t, turboRateHz[s], eventTime * 1_000_000L)
+        } else if (triggerPointerCount[t] > 0 && swipeDurationNanos[s] > 0) {
+            downSwipeDx[t] = m[0] * swipeDx[s] + m[1] * swipeDy[s]
+            downSwipeDy[t] = m[3] * swipeDx[s] + m[4] * swipeDy[s]
+            downSwipeNanos[t] = swipeDurationNanos[s]
+            swipeStartNanos[t] = eventTime * 1_000_000L
+            swipingTriggers = swipingTriggers or (1 shl t)
+            scheduleSwipeFrame()
+        }
+    }
+
+    private fun triggerUp(t: Int, eventTime: Long) {
+        swipingTriggers = swipingTriggers and (1 shl t).inv()
+        turboScheduler.stop(t)
+        val ids = triggerPointerIds[t]
+        for (i in 0 until triggerPointerCount[t]) {
+            pointerUp(ids[i], eventTime)
+            releasePointerId(ids[i])
+        }
+        triggerPointerCount[t] = 0
+    }
+
+    private fun scheduleSwipeFrame() {
+        if (frameCallbackPosted) return
+        val choreographer = choreographer ?: Choreographer.getInstance().also { choreographer = it }
+        choreographer.postFrameCallback(swipeFrameCallback)
+        frameCallbackPosted = true
+    }
+
     /**
-     * Press right trigger at (x,y)
+     * Moves every swiping trigger to where its path is at [frameTimeNanos] and
+     * injects a single ACTION_MOVE carrying all pointers.
      */
-    fun rightTriggerDown(x: Float, y: Float) {
+    private fun onSwipeFrame(frameTimeNanos: Long) {
         synchronized(lock) {
-            if (rightActive) return
-            rightActive = true
-            rightX = x
-            rightY = y
-            
-            val now = SystemClock.uptimeMillis()
-            
-            if (!leftActive) {
-                // First finger down - use ACTION_DOWN
-                multiTouchDownTime = now
-                rightDownTime = now
-                injectSingleTouch(MotionEvent.ACTION_DOWN, multiTouchDownTime, now, rightX, rightY, 1)
-            } else {
-                // Second finger down - use ACTION_POINTER_DOWN with index 1 (right is pointer 1)
-                rightDownTime = now
-                injectMultiTouch(
-                    MotionEvent.ACTION_POINTER_DOWN or (1 shl MotionEvent.ACTION_POINTER_INDEX_SHIFT),
-                    multiTouchDownTime, now
-                )
+            frameCallbackPosted = false
+            if (swipingTriggers == 0) return
+
+            var moved = false
+            for (t in LEFT..RIGHT) {
+                if (swipingTriggers and (1 shl t) == 0) continue
+                val elapsed = frameTimeNanos - swipeStartNanos[t]
+                if (elapsed <= 0) continue
+                val progress = if (elapsed >= downSwipeNanos[t]) {
+                    swipingTriggers = swipingTriggers and (1 shl t).inv()
+                    1f
+                } else {
+                    elapsed.toFloat() / downSwipeNanos[t]
+                }
+                val index = indexOfPointer(triggerPointerIds[t][0])
+                if (index < 0) continue
+                activeX[index] = downX[t][0] + downSwipeDx[t] * progress
+                activeY[index] = downY[t][0] + downSwipeDy[t] * progress
+                moved = true
+            }
+
+            if (moved) {
+                captureNanos = 0L
+                injectTouch(MotionEvent.ACTION_MOVE, frameTimeNanos / 1_000_000L)
+            }
+            if (swipingTriggers != 0) {
+                scheduleSwipeFrame()
             }
-            Log.d(TAG, "Right DOWN at ($x, $y), leftActive=$leftActive")
         }
     }
 
     /**
-     * Release right trigger
+     * Applies one recorded macro event. [ids] are the recorded pointer ids,
+     * [xs]/[ys] display coordinates; [action] is masked and [actionIndex]
+     * selects the pointer of a (POINTER_)DOWN/UP.
+     *
+     * Macro pointers get ids from the same table as the triggers, so a macro
+     * and held triggers can overlap in one gesture.
      */
-    fun rightTriggerUp() {
+    fun applyMacroEvent(action: Int, actionIndex: Int, count: Int,
+                        ids: IntArray, xs: FloatArray, ys: FloatArray, eventTime: Long) {
         synchronized(lock) {
-            if (!rightActive) return
-            
-            val now = SystemClock.uptimeMillis()
-            
-            if (leftActive) {
-                // Right going up while left still down - use ACTION_POINTER_UP
-                injectMultiTouch(
-                    MotionEvent.ACTION_POINTER_UP or (1 shl MotionEvent.ACTION_POINTER_INDEX_SHIFT),
-                    multiTouchDownTime, now
-                )
-            } else {
-                // Only right was down - use ACTION_UP
-                injectSingleTouch(MotionEvent.ACTION_UP, rightDownTime, now, rightX, rightY, 1)
+            captureNanos = 0L
+            when (action) {
+                MotionEvent.ACTION_DOWN, MotionEvent.ACTION_POINTER_DOWN -> {
+                    if (actionIndex >= count) return
+                    val recorded = ids[actionIndex]
+                    if (recorded !in 0 until MAX_POINTERS || macroPointerIds[recorded] >= 0) return
+                    val id = allocatePointerId()
+                    if (id < 0) return
+                    macroPointerIds[recorded] = id
+                    val m = if (usesUinput()) displayToNatural else IDENTITY
+                    val x = xs[actionIndex]
+                    val y = ys[actionIndex]
+                    pointerDown(id, m[0] * x + m[1] * y + m[2], m[3] * x + m[4] * y + m[5], eventTime)
+                }
+                MotionEvent.ACTION_MOVE -> {
+                    val m = if (usesUinput()) displayToNatural else IDENTITY
+                    var moved = false
+                    for (i in 0 until count) {
+                        val recorded = ids[i]
+                        if (recorded !in 0 until MAX_POINTERS) continue
+                        val index = indexOfPointer(macroPointerIds[recorded])
+                        if (index < 0) continue
+                        activeX[index] = m[0] * xs[i] + m[1] * ys[i] + m[2]
+                        activeY[index] = m[3] * xs[i] + m[4] * ys[i] + m[5]
+                        moved = true
+                    }
+                    if (moved) injectTouch(MotionEvent.ACTION_MOVE, eventTime)
+                }
+                MotionEvent.ACTION_UP, MotionEvent.ACTION_POINTER_UP -> {
+                    if (actionIndex >= count) return
+                    val recorded = ids[actionIndex]
+                    if (recorded !in 0 until MAX_POINTERS) return
+                    macroPointerUp(recorded, eventTime)
+                }
+                MotionEvent.ACTION_CANCEL -> endMacro()
             }
-            
-            rightActive = false
-            rightDownTime = 0L
-            Log.d(TAG, "Right UP, leftActive=$leftActive")
         }
     }
 
+    /**
+     * Injects [event] in order with the touch events, taking ownership of it.
+     */
+    fun injectKeyEvent(event: KeyEvent) {
+        synchronized(lock) {
+            captureNanos = 0L
+            injectEvent(event)
+        }
+    }
+
+    /**
+     * Lifts every pointer still held by a macro.
+     */
+    fun endMacro() {
+        synchronized(lock) {
+            captureNanos = 0L
+            val eventTime = SystemClock.uptimeMillis()
+            for (recorded in 0 until MAX_POINTERS) {
+                macroPointerUp(recorded, eventTime)
+            }
+        }
+    }
+
+    private fun macroPointerUp(recorded: Int, eventTime: Long) {
+        val id = macroPointerIds[recorded]
+        if (id < 0) return
+        pointerUp(id, eventTime)
+        releasePointerId(id)
+        macroPointerIds[recorded] = -1
+    }
+
+    /**
+     * Lifts or puts back down the points of a turbo trigger. The trigger keeps
+     * its pointer ids while lifted, so they are not handed out to the other
+     * trigger in between taps.
+     */
+    private fun onTurboPhase(t: Int, generation: Int, down: Boolean, timeNanos: Long) {
+        synchronized(lock) {
+            if (generation != turboGeneration[t] || triggerPointerCount[t] == 0) return
+            captureNanos = 0L
+            val eventTime = timeNanos / 1_000_000L
+            val ids = triggerPointerIds[t]
+            for (i in 0 until triggerPointerCount[t]) {
+                if (down) {
+                    pointerDown(ids[i], downX[t][i], downY[t][i], eventTime)
+                } else {
+                    pointerUp(ids[i], eventTime)
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a turbo phase of [trigger] on the calling thread, as the clock
+     * thread would, so tests can measure it.
+     */
+    @VisibleForTesting
+    fun runTurboPhase(trigger: Int, down: Boolean, timeNanos: Long) {
+        synchronized(lock) {
+            val t = if (trigger == TriggersReader.KEY_LEFT) LEFT else RIGHT
+            onTurboPhase(t, turboGeneration[t], down, timeNanos)
+        }
+    }
+
+    /**
+     * Whether the next pointer goes to the virtual touchscreen: it is attached
+     * to the default display, other displays are only reached by injection.
+     * A gesture stays on the display it started on.
+     */
+    private fun usesUinput(): Boolean {
+        val target = if (activeCount > 0) gestureDisplayId else displayId
+        return uinputTouchscreen != null && target == Display.DEFAULT_DISPLAY
+    }
+
+    /**
+     * Returns the lowest free pointer id, or -1 if all are in use.
+     */
+    private fun allocatePointerId(): Int {
+        val id = Integer.numberOfTrailingZeros(usedPointerIds.inv())
+        if (id >= MAX_POINTERS) return -1
+        usedPointerIds = usedPointerIds or (1 shl id)
+        return id
+    }
+
+    private fun releasePointerId(id: Int) {
+        usedPointerIds = usedPointerIds and (1 shl id).inv()
+    }
+
     fun shutdown() {
         synchronized(lock) {
             cancelAll()
+            turboScheduler.shutdown()
+            injectionQueue?.shutdown()
+            uinputTouchscreen?.close()
+            uinputTouchscreen = null
         }
     }
 
     fun cancelAll() {
         synchronized(lock) {
-            val now = SystemClock.uptimeMillis()
-            if (leftActive || rightActive) {
-                if (leftActive && rightActive) {
-                    // Both active - cancel multi-touch
-                    injectMultiTouch(MotionEvent.ACTION_CANCEL, multiTouchDownTime, now)
-                } else if (leftActive) {
-                    injectSingleTouch(MotionEvent.ACTION_CANCEL, leftDownTime, now, leftX, leftY, 0)
-                } else {
-                    injectSingleTouch(MotionEvent.ACTION_CANCEL, rightDownTime, now, rightX, rightY, 1)
-                }
-                leftActive = false
-                rightActive = false
-                leftDownTime = 0L
-                rightDownTime = 0L
+            captureNanos = 0L
+            if (activeCount > 0) {
+                injectTouch(MotionEvent.ACTION_CANCEL, SystemClock.uptimeMillis())
+                activeCount = 0
             }
+            triggerPointerCount[LEFT] = 0
+            triggerPointerCount[RIGHT] = 0
+            usedPointerIds = 0
+            macroPointerIds.fill(-1)
+            swipingTriggers = 0
+            turboScheduler.stop(LEFT)
+            turboScheduler.stop(RIGHT)
+        }
+    }
+
+    private fun indexOfPointer(id: Int): Int {
+        for (i in 0 until activeCount) {
+            if (activeIds[i] == id) return i
         }
+        return -1
     }
 
     /**
-     * Inject single-touch event (when only one trigger is active)
+     * Puts pointer [id] down and injects ACTION_DOWN, or ACTION_POINTER_DOWN
+     * with its index if other pointers are already down.
      */
-    private fun injectSingleTouch(action: Int, downTime: Long, eventTime: Long, x: Float, y: Float, pointerId: Int) {
-        val props = MotionEvent.PointerProperties().apply {
-            id = pointerId
-            toolType = MotionEvent.TOOL_TYPE_FINGER
+    private fun pointerDown(id: Int, x: Float, y: Float, eventTime: Long) {
+        if (indexOfPointer(id) >= 0 || activeCount == MAX_POINTERS) return
+
+        var index = activeCount
+        while (index > 0 && activeIds[index - 1] > id) {
+            activeIds[index] = activeIds[index - 1]
+            activeX[index] = activeX[index - 1]
+            activeY[index] = activeY[index - 1]
+            index--
         }
-        
-        val coords = MotionEvent.PointerCoords().apply {
-            this.x = x
-            this.y = y
-            pressure = 1.0f
-            size = 1.0f
+        activeIds[index] = id
+        activeX[index] = x
+        activeY[index] = y
+        activeCount++
+
+        if (activeCount == 1) {
+            // First finger down - use ACTION_DOWN
+            gestureDownTime = eventTime
+            gestureDisplayId = displayId
+            injectTouch(MotionEvent.ACTION_DOWN, eventTime)
+        } else {
+            injectTouch(
+                MotionEvent.ACTION_POINTER_DOWN or (index shl MotionEvent.ACTION_POINTER_INDEX_SHIFT),
+                eventTime
+            )
         }
-        
-        val event = MotionEvent.obtain(
-            downTime, eventTime, action,
-            1, arrayOf(props), arrayOf(coords),
-            0, 0, 1f, 1f, 0, 0,
-            InputDevice.SOURCE_TOUCHSCREEN, 0
-        )
-        
-        injectEvent(event)
-        event.recycle()
     }
 
     /**
-     * Inject multi-touch event (when both triggers are active or one is leaving)
+     * Injects ACTION_UP for the last pointer, or ACTION_POINTER_UP with the
+     * pointer's index while others stay down, then removes pointer [id].
      */
-    private fun injectMultiTouch(action: Int, downTime: Long, eventTime: Long) {
-        // Always include both pointers in the event
-        val propsArray = arrayOf(
-            MotionEvent.PointerProperties().apply {
-                id = 0  // Left trigger
-                toolType = MotionEvent.TOOL_TYPE_FINGER
-            },
-            MotionEvent.PointerProperties().apply {
-                id = 1  // Right trigger
-                toolType = MotionEvent.TOOL_TYPE_FINGER
-            }
-        )
-        
-        val coordsArray = arrayOf(
-            MotionEvent.PointerCoords().apply {
-                x = leftX
-                y = leftY
-                pressure = 1.0f
-                size = 1.0f
-            },
-            MotionEvent.PointerCoords().apply {
-                x = rightX
-                y = rightY
-                pressure = 1.0f
-                size = 1.0f
+    private fun pointerUp(id: Int, eventTime: Long) {
+        val index = indexOfPointer(id)
+        if (index < 0) return
+
+        if (activeCount == 1) {
+            injectTouch(MotionEvent.ACTION_UP, eventTime)
+        } else {
+            injectTouch(
+                MotionEvent.ACTION_POINTER_UP or (index shl MotionEvent.ACTION_POINTER_INDEX_SHIFT),
+                eventTime
+            )
+        }
+
+        for (i in index until activeCount - 1) {
+            activeIds[i] = activeIds[i + 1]
+            activeX[i] = activeX[i + 1]
+            activeY[i] = activeY[i + 1]
+        }
+        activeCount--
+    }
+
+    /**
+     * Inject an event carrying all active pointers
+     */
+    private fun injectTouch(action: Int, eventTime: Long) {
+        // The virtual touchscreen is attached to the default display
+        val uinput = uinputTouchscreen
+        if (uinput != null && gestureDisplayId == Display.DEFAULT_DISPLAY) {
+            if (uinput.report(action, activeCount, activeIds, activeX, activeY)) {
+                if (captureNanos != 0L) {
+                    injectLatency.record(SystemClock.elapsedRealtimeNanos() - captureNanos)
+                }
+                return
             }
-        )
-        
+            Log.w(TAG, "uinput touchscreen failed, falling back to injection")
+            uinput.close()
+            uinputTouchscreen = null
+        }
+
+        for (i in 0 until activeCount) {
+            pointerProperties[i].id = activeIds[i]
+            pointerCoords[i].x = activeX[i]
+            pointerCoords[i].y = activeY[i]
+        }
+
         val event = MotionEvent.obtain(
-            downTime, eventTime, action,
-            2, propsArray, coordsArray,
+            gestureDownTime, eventTime, action,
+            activeCount, pointerProperties, pointerCoords,
             0, 0, 1f, 1f, 0, 0,
             InputDevice.SOURCE_TOUCHSCREEN, 0
         )
-        
+        event.setDisplayId(gestureDisplayId)
+
         injectEvent(event)
-        event.recycle()
     }
 
-    private fun injectEvent(event: MotionEvent) {
+    /**
+     * Injects and recycles [event], or hands it to the injection queue.
+     */
+    private fun injectEvent(event: InputEvent) {
+        if (injectionQueue != null) {
+            injectionQueue.enqueue(event, captureNanos)
+            return
+        }
         try {
-            val method = InputManager::class.java.getMethod(
-                "injectInputEvent",
-                InputEvent::class.java,
-                Int::class.javaPrimitiveType
-            )
-            val result = method.invoke(inputManager, event, INJECT_MODE)
-            Log.d(TAG, "Injected: action=${event.actionMasked} pointers=${event.pointerCount} result=$result")
+            val result = inputManager.injectInputEvent(event, INJECT_MODE)
+            if (captureNanos != 0L) {
+                injectLatency.record(SystemClock.elapsedRealtimeNanos() - captureNanos)
+            }
+            if (!result) {
+                Log.w(TAG, "Event was not injected")
+            }
         } catch (e: Exception) {
-            Log.e(TAG, "Failed to inject touch event", e)
+            Log.e(TAG, "Failed to inject event", e)
+        }
+        event.recycle()
+    }
+
+    fun dump(pw: PrintWriter) {
+        pw.println("  touch backend: ${if (uinputTouchscreen != null) "uinput" else "inject"}")
+        if (uinputTouchscreen != null) {
+            injectLatency.dump(pw)
+        } else if (injectionQueue != null) {
+            injectionQueue.dump(pw)
+            injectionQueue.injectLatency.dump(pw)
+        } else {
+            injectLatency.dump(pw)
         }
+        turboScheduler.dump(pw)
     }
 }
@@ -0,0 +1,137 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+import android.os.Process
+import java.io.PrintWriter
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Drift-free tap clock for turbo triggers.
+ *
+ * Every running trigger alternates between a down and an up phase, each half a
+ * period long. Phase deadlines are computed from the start time and the phase
+ * number (start + n * period / 2) instead of from the previous wakeup, so
+ * scheduling delay never accumulates. The clock thread waits for the
+ * earliest deadline with [waitForDeadline]; the lateness of every tick is
+ * recorded in [jitter].
+ */
+class GamekeyTurboScheduler(private val callback: Callback) {
+    fun interface Callback {
+        /**
+         * Called on the clock thread when [trigger] enters a new phase.
+         * @param generation the value returned by the [start] that started it
+         * @param down whether this is a down phase
+         * @param timeNanos the phase deadline, in the System.nanoTime() base
+         */
+        fun onTurboPhase(trigger: Int, generation: Int, down: Boolean, timeNanos: Long)
+    }
+
+    companion object {
+        const val MAX_TRIGGERS = 2
+    }
+
+    private val lock = Any()
+    private val running = BooleanArray(MAX_TRIGGERS)
+    private val generation = IntArray(MAX_TRIGGERS)
+    private val startNanos = LongArray(MAX_TRIGGERS)
+    private val halfPeriodNanos = LongArray(MAX_TRIGGERS)
+    private val phase = LongArray(MAX_TRIGGERS)
+    @Volatile private var quit = false
+    // Set when a trigger is started or stopped, so the deadlines are recomputed
+    @Volatile private var changed = false
+
+    val jitter = LatencyStats("turbo tap jitter")
+
+    private val thread = object : Thread("gamekey-turbo") {
+        override fun run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY)
+            loop()
+        }
+    }
+
+    init {
+        thread.start()
+    }
+
+    /**
+     * Starts tapping [trigger] at [rateHz]. The trigger is taken to have gone
+     * down at [downNanos], so the first phase due is the up phase half a
+     * period later.
+     * @return the generation to match in [Callback.onTurboPhase]
+     */
+    fun start(trigger: Int, rateHz: Float, downNanos: Long): Int {
+        synchronized(lock) {
+            running[trigger] = true
+            startNanos[trigger] = downNanos
+            halfPeriodNanos[trigger] = (500_000_000.0 / rateHz).toLong().coerceAtLeast(1L)
+            phase[trigger] = 1
+            generation[trigger]++
+            changed = true
+            LockSupport.unpark(thread)
+            return generation[trigger]
+        }
+    }
+
+    fun stop(trigger: Int) {
+        synchronized(lock) {
+            running[trigger] = false
+            generation[trigger]++
+            changed = true
+        }
+        LockSupport.unpark(thread)
+    }
+
+    fun shutdown() {
+        quit = true
+        LockSupport.unpark(thread)
+    }
+
+    private fun loop() {
+        while (!quit) {
+            var trigger = -1
+            var deadline = Long.MAX_VALUE
+            synchronized(lock) {
+                changed = false
+                for (t in 0 until MAX_TRIGGERS) {
+                    if (!running[t]) continue
+                    val due = startNanos[t] + phase[t] * halfPeriodNanos[t]
+                    if (due < deadline) {
+                        deadline = due
+                        trigger = t
+                    }
+                }
+            }
+
+            if (trigger < 0) {
+                LockSupport.park(this)
+                continue
+            }
+            if (!waitForDeadline(deadline) { changed || quit }) continue
+
+            var gen = 0
+            var down = false
+            var due = false
+            synchronized(lock) {
+                // Skip the tick if the trigger was restarted or stopped meanwhile
+                if (running[trigger] &&
+                        startNanos[trigger] + phase[trigger] * halfPeriodNanos[trigger] == deadline) {
+                    gen = generation[trigger]
+                    down = phase[trigger] % 2 == 0L
+                    phase[trigger]++
+                    due = true
+                }
+            }
+            if (!due) continue
+            jitter.record(System.nanoTime() - deadline)
+            callback.onTurboPhase(trigger, gen, down, deadline)
+        }
+    }
+
+    fun dump(pw: PrintWriter) {
+        jitter.dump(pw)
+    }
+}
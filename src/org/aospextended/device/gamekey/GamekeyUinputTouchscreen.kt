@@ -0,0 +1,101 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+import android.content.Context
+import android.hardware.display.DisplayManager
+import android.util.Log
+import android.view.Display
+import android.view.MotionEvent
+
+/**
+ * Virtual multitouch screen created through /dev/uinput.
+ *
+ * Trigger pointers are written as evdev slots of a separate input device, so
+ * InputReader merges them with the real touch panel like a second panel:
+ * they get their own pointer ids, and there is no injection permission check
+ * or per-event binder call. The slot of a pointer is its injector pointer id.
+ *
+ * The device is internal (BUS_VIRTUAL) and its axes span the display in its
+ * natural orientation; InputReader applies the rotation.
+ */
+class GamekeyUinputTouchscreen private constructor(private var fd: Int) {
+    companion object {
+        private const val TAG = "GamekeyUinputTouchscreen"
+        const val MAX_SLOTS = 10
+
+        /**
+         * Creates the virtual touchscreen, or returns null if uinput is not
+         * usable.
+         */
+        fun create(context: Context): GamekeyUinputTouchscreen? {
+            if (!GamekeyNative.loaded) return null
+            val display = context.getSystemService(DisplayManager::class.java)
+                .getDisplay(Display.DEFAULT_DISPLAY) ?: return null
+            val mode = display.mode
+            val width = minOf(mode.physicalWidth, mode.physicalHeight)
+            val height = maxOf(mode.physicalWidth, mode.physicalHeight)
+            val fd = nativeOpen(width, height)
+            if (fd < 0) return null
+            Log.i(TAG, "Created virtual touchscreen ${width}x$height")
+            return GamekeyUinputTouchscreen(fd)
+        }
+
+        @JvmStatic private external fun nativeOpen(width: Int, height: Int): Int
+        @JvmStatic private external fun nativeClose(fd: Int)
+        @JvmStatic private external fun nativeReport(
+            fd: Int, trackingIds: IntArray, xs: FloatArray, ys: FloatArray): Boolean
+    }
+
+    // Slot state, indexed by pointer id; tracking id -1 = no contact
+    private val trackingIds = IntArray(MAX_SLOTS) { -1 }
+    private val slotX = FloatArray(MAX_SLOTS)
+    private val slotY = FloatArray(MAX_SLOTS)
+    private var nextTrackingId = 0
+
+    /**
+     * Reports the injector's pointers after [action]: the pointer an UP or
+     * POINTER_UP is for is left out, and CANCEL lifts everything.
+     * @return false if the device could not be written
+     */
+    fun report(action: Int, count: Int, ids: IntArray, xs: FloatArray, ys: FloatArray): Boolean {
+        if (fd < 0) return false
+
+        val masked = action and MotionEvent.ACTION_MASK
+        val leaving = when (masked) {
+            MotionEvent.ACTION_UP -> 0
+            MotionEvent.ACTION_POINTER_UP ->
+                (action and MotionEvent.ACTION_POINTER_INDEX_MASK) shr MotionEvent.ACTION_POINTER_INDEX_SHIFT
+            else -> -1
+        }
+
+        var present = 0
+        if (masked != MotionEvent.ACTION_CANCEL) {
+            for (i in 0 until count) {
+                if (i == leaving) continue
+                val slot = ids[i]
+                present = present or (1 shl slot)
+                if (trackingIds[slot] < 0) {
+                    trackingIds[slot] = nextTrackingId
+                    nextTrackingId = (nextTrackingId + 1) and 0xffff
+                }
+                slotX[slot] = xs[i]
+                slotY[slot] = ys[i]
+            }
+        }
+        for (slot in 0 until MAX_SLOTS) {
+            if (present and (1 shl slot) == 0) trackingIds[slot] = -1
+        }
+
+        return nativeReport(fd, trackingIds, slotX, slotY)
+    }
+
+    fun close() {
+        if (fd < 0) return
+        nativeClose(fd)
+        fd = -1
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+import java.io.PrintWriter
+
+/**
+ * Running min/mean/max of a nanosecond interval. Recorded from a single
+ * thread without allocating; read from dumpsys.
+ */
+class LatencyStats(private val name: String) {
+    @Volatile private var count = 0L
+    @Volatile private var sumNanos = 0L
+    @Volatile private var minNanos = Long.MAX_VALUE
+    @Volatile private var maxNanos = 0L
+    @Volatile private var lastNanos = 0L
+
+    fun record(nanos: Long) {
+        count++
+        sumNanos += nanos
+        if (nanos < minNanos) minNanos = nanos
+        if (nanos > maxNanos) maxNanos = nanos
+        lastNanos = nanos
+    }
+
+    fun reset() {
+        count = 0L
+        sumNanos = 0L
+        minNanos = Long.MAX_VALUE
+        maxNanos = 0L
+        lastNanos = 0L
+    }
+
+    fun dump(pw: PrintWriter) {
+        val n = count
+        if (n == 0L) {
+            pw.println("  $name: no samples")
+            return
+        }
+        pw.println("  $name: count=$n minUs=${minNanos / 1000} meanUs=${sumNanos / n / 1000} " +
+                "maxUs=${maxNanos / 1000} lastUs=${lastNanos / 1000}")
+    }
+}
@@ -5,16 +5,18 @@
 
 package org.aospextended.device.gamekey
 
+import android.os.FileObserver
+import android.os.Handler
+import android.os.Looper
+import android.os.MessageQueue
+import android.os.SystemClock
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
 import android.util.Log
-import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.SupervisorJob
-import kotlinx.coroutines.cancel
-import kotlinx.coroutines.delay
-import kotlinx.coroutines.launch
 import java.io.File
-import java.io.FileInputStream
-import java.io.RandomAccessFile
+import java.io.FileDescriptor
+import java.io.PrintWriter
 
 /**
  * Reads trigger states from /dev/gamekey device node.
@@ -24,96 +26,304 @@ import java.io.RandomAccessFile
  * - byte[1]: hall_right (slider open/closed)
  * - byte[2]: key_left (button pressed)
  * - byte[3]: key_right (button pressed)
+ *
+ * Frames are packed into a bitmask (see [HALL_LEFT] and friends) and only
+ * frames that differ from the previous one are passed to the [FrameSink]
+ * (normally [GamekeyDebounceFilter] feeding the [GamekeyEventRing]), stamped
+ * with the elapsedRealtimeNanos() at which they were read. This does not
+ * allocate.
+ *
+ * All work happens on the given [looper]. By default the device fd is
+ * registered with the looper's MessageQueue, so the thread sleeps in epoll
+ * until the driver reports new state. Drivers that do not implement poll (the
+ * node is always reported readable) are detected and handled by the legacy
+ * fixed-interval read loop instead. The keys can only be pressed while a
+ * slider is open, so while both sliders are closed that loop drops to a slow,
+ * hall-only rate and returns to full rate as soon as one opens.
+ *
+ * While the node does not exist, /dev is watched with inotify so the reader
+ * connects as soon as the driver creates it (or init fixes its permissions).
+ * Read and open errors are retried with bounded exponential backoff.
+ *
+ * Every frame read is also published to [GamekeyState] for ad-hoc readers.
  */
 class TriggersReader(
-    private val onTriggersChanged: (hallLeft: Boolean, hallRight: Boolean, keyLeft: Boolean, keyRight: Boolean) -> Unit,
+    looper: Looper,
+    private val sink: FrameSink,
 ) {
+    fun interface FrameSink {
+        /**
+         * Called on the reader's looper with a frame bitmask that differs from
+         * the previous one.
+         */
+        fun onFrame(frame: Int, timestampNanos: Long)
+    }
+
     companion object {
+        const val HALL_LEFT = 1 shl 0
+        const val HALL_RIGHT = 1 shl 1
+        const val KEY_LEFT = 1 shl 2
+        const val KEY_RIGHT = 1 shl 3
+
         private const val TAG = "TriggersReader"
-        private const val GAMEKEY_PATH = "/dev/gamekey"
+        private const val DEV_DIR = "/dev"
+        private const val GAMEKEY_NAME = "gamekey"
+        private const val GAMEKEY_PATH = "$DEV_DIR/$GAMEKEY_NAME"
         private const val BUFFER_SIZE = 4
-        private const val DEVICE_POLL_DELAY_MS = 2000L
         private const val READ_DELAY_MS = 12L
+        private const val HALL_ONLY_READ_DELAY_MS = 100L
+        private const val HALL_MASK = HALL_LEFT or HALL_RIGHT
         private const val ERROR_RETRY_DELAY_MS = 150L
+        private const val ERROR_RETRY_MAX_DELAY_MS = 5000L
+
+        // Safety net in case the inotify watch on /dev cannot be established;
+        // backs off so builds without the node settle at one check a minute.
+        private const val DEVICE_RECHECK_MIN_MS = 2000L
+        private const val DEVICE_RECHECK_MAX_MS = 60_000L
+
+        // Number of back-to-back wakeups without a new frame (identical frame,
+        // or nothing to read) before we assume the driver cannot wait on the fd.
+        private const val SPURIOUS_WAKEUP_LIMIT = 8
+
+        private const val FD_EVENTS =
+            MessageQueue.OnFileDescriptorEventListener.EVENT_INPUT or
+                    MessageQueue.OnFileDescriptorEventListener.EVENT_ERROR
     }
 
-    private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
+    private val handler = Handler(looper)
+    private val queue = looper.queue
+    private val buffer = ByteArray(BUFFER_SIZE)
+
+    // Only touched on the looper thread
     private var isRunning = false
+    private var deviceFd: FileDescriptor? = null
+    private var lastFrame = 0
+    private var lastReadNanos = 0L
+    private var spuriousWakeups = 0
+    private var errorRetryDelayMs = ERROR_RETRY_DELAY_MS
+    private var deviceRecheckMs = DEVICE_RECHECK_MIN_MS
+    private var watchingDev = false
+    private var hasConnected = false
 
-    fun startReading() {
-        if (isRunning) return
+    @Volatile private var reconnectCount = 0
+    @Volatile private var pollReads = 0L
+
+    // Cleared once the driver turns out not to support poll()
+    private var eventDriven = true
 
-        isRunning = true
-        scope.launch {
-            readLoop()
+    private val openRunnable = Runnable { openDevice() }
+
+    private val pollRunnable = object : Runnable {
+        override fun run() {
+            val fd = deviceFd ?: return
+            try {
+                pollReads++
+                if (readFrame(fd)) {
+                    val frame = packFrame()
+                    GamekeyState.publish(frame)
+                    dispatchFrame(frame)
+                }
+                handler.postDelayed(this, if (isHallOnly()) HALL_ONLY_READ_DELAY_MS else READ_DELAY_MS)
+            } catch (e: ErrnoException) {
+                Log.w(TAG, "Read error, retrying: ${e.message}")
+                closeDevice()
+                scheduleRetry()
+            }
         }
-        Log.d(TAG, "TriggersReader started")
     }
 
+    private val devObserver = object : FileObserver(File(DEV_DIR), FileObserver.CREATE or FileObserver.ATTRIB) {
+        override fun onEvent(event: Int, path: String?) {
+            if (path == GAMEKEY_NAME) {
+                handler.removeCallbacks(openRunnable)
+                handler.post(openRunnable)
+            }
+        }
+    }
+
+    private val fdListener = MessageQueue.OnFileDescriptorEventListener { fd, events ->
+        onDeviceEvents(fd, events)
+    }
+
+    fun startReading() {
+        handler.post {
+            if (!isRunning) {
+                isRunning = true
+                openDevice()
+                Log.d(TAG, "TriggersReader started")
+            }
+        }
+    }
+
+    /**
+     * Stops reading. Runs ahead of any queued work on the looper, and since the
+     * looper only ever waits in epoll, this takes effect right away.
+     */
     fun stopReading() {
-        isRunning = false
-        scope.cancel()
-        Log.d(TAG, "TriggersReader stopped")
+        handler.postAtFrontOfQueue {
+            isRunning = false
+            handler.removeCallbacks(openRunnable)
+            handler.removeCallbacks(pollRunnable)
+            stopWatchingDev()
+            closeDevice()
+            Log.d(TAG, "TriggersReader stopped")
+        }
     }
 
-    private suspend fun readLoop() {
-        while (isRunning) {
-            try {
-                if (waitForDeviceAvailability()) {
-                    readInputEvents()
-                }
-            } catch (e: Exception) {
-                Log.e(TAG, "Read loop error: ${e.message}", e)
-                delay(ERROR_RETRY_DELAY_MS)
+    private fun openDevice() {
+        if (!isRunning || deviceFd != null) return
+        if (!File(GAMEKEY_PATH).exists()) {
+            if (!watchingDev) {
+                devObserver.startWatching()
+                watchingDev = true
+                Log.d(TAG, "Waiting for $GAMEKEY_PATH")
             }
+            handler.postDelayed(openRunnable, deviceRecheckMs)
+            deviceRecheckMs = minOf(deviceRecheckMs * 2, DEVICE_RECHECK_MAX_MS)
+            return
         }
+
+        val fd = try {
+            Os.open(GAMEKEY_PATH, OsConstants.O_RDONLY or OsConstants.O_NONBLOCK or OsConstants.O_CLOEXEC, 0)
+        } catch (e: ErrnoException) {
+            Log.e(TAG, "Failed to open $GAMEKEY_PATH: ${e.message}")
+            scheduleRetry()
+            return
+        }
+        handler.removeCallbacks(openRunnable)
+        stopWatchingDev()
+        deviceRecheckMs = DEVICE_RECHECK_MIN_MS
+        deviceFd = fd
+        spuriousWakeups = 0
+        if (hasConnected) reconnectCount++
+        hasConnected = true
+
+        if (eventDriven) {
+            queue.addOnFileDescriptorEventListener(fd, FD_EVENTS, fdListener)
+        } else {
+            handler.post(pollRunnable)
+        }
+    }
+
+    /**
+     * Both sliders closed: the keys cannot be reached, only the hall sensors
+     * can change.
+     */
+    private fun isHallOnly() = lastFrame and HALL_MASK == 0
+
+    private fun scheduleRetry() {
+        handler.removeCallbacks(openRunnable)
+        handler.postDelayed(openRunnable, errorRetryDelayMs)
+        errorRetryDelayMs = minOf(errorRetryDelayMs * 2, ERROR_RETRY_MAX_DELAY_MS)
     }
 
-    private suspend fun waitForDeviceAvailability(): Boolean {
-        val deviceFile = File(GAMEKEY_PATH)
-        while (isRunning && !deviceFile.exists()) {
-            delay(DEVICE_POLL_DELAY_MS)
+    private fun stopWatchingDev() {
+        if (watchingDev) {
+            devObserver.stopWatching()
+            watchingDev = false
         }
-        return deviceFile.exists()
-    }
-
-    private suspend fun readInputEvents() {
-        RandomAccessFile(GAMEKEY_PATH, "r").use { raf ->
-            FileInputStream(raf.fd).use { fis ->
-                val buffer = ByteArray(BUFFER_SIZE)
-
-                while (isRunning) {
-                    try {
-                        val bytesRead = readFullBuffer(fis, buffer)
-                        if (bytesRead == BUFFER_SIZE) {
-                            val hallLeft = buffer[0].toInt() == 1
-                            val hallRight = buffer[1].toInt() == 1
-                            val keyLeft = buffer[2].toInt() == 1
-                            val keyRight = buffer[3].toInt() == 1
-
-                            // Notify listener
-                            onTriggersChanged(hallLeft, hallRight, keyLeft, keyRight)
-                        }
-                        delay(READ_DELAY_MS)
-                    } catch (e: Exception) {
-                        Log.w(TAG, "Read error, retrying: ${e.message}")
-                        delay(ERROR_RETRY_DELAY_MS)
-                    }
-                }
+    }
+
+    private fun closeDevice() {
+        val fd = deviceFd ?: return
+        deviceFd = null
+        GamekeyState.invalidate()
+        queue.removeOnFileDescriptorEventListener(fd)
+        try {
+            Os.close(fd)
+        } catch (e: ErrnoException) {
+            Log.w(TAG, "Failed to close $GAMEKEY_PATH: ${e.message}")
+        }
+    }
+
+    /**
+     * Called by the looper when the device fd becomes readable. Returns the
+     * events to keep listening for, or 0 to unregister.
+     */
+    private fun onDeviceEvents(fd: FileDescriptor, events: Int): Int {
+        if (!isRunning || fd !== deviceFd) return 0
+
+        try {
+            if (events and MessageQueue.OnFileDescriptorEventListener.EVENT_ERROR != 0) {
+                throw ErrnoException("poll", OsConstants.EIO)
             }
+            // A level-triggered node that stays readable would spin here
+            if (!readFrame(fd)) return onSpuriousWakeup()
+
+            val frame = packFrame()
+            GamekeyState.publish(frame)
+            if (frame == lastFrame) return onSpuriousWakeup()
+            spuriousWakeups = 0
+            dispatchFrame(frame)
+            return FD_EVENTS
+        } catch (e: ErrnoException) {
+            Log.w(TAG, "Read error, reopening: ${e.message}")
+            deviceFd = null
+            GamekeyState.invalidate()
+            try {
+                Os.close(fd)
+            } catch (ignored: ErrnoException) {
+            }
+            scheduleRetry()
+            return 0
         }
     }
 
-    private fun readFullBuffer(
-        stream: FileInputStream,
-        buffer: ByteArray,
-    ): Int {
+    /**
+     * Counts a wakeup that brought no new frame and switches to the polling
+     * loop once the driver has woken us up too often for nothing.
+     */
+    private fun onSpuriousWakeup(): Int {
+        if (++spuriousWakeups < SPURIOUS_WAKEUP_LIMIT) return FD_EVENTS
+        Log.w(TAG, "Driver does not block in poll(), using polling loop")
+        eventDriven = false
+        handler.post(pollRunnable)
+        return 0
+    }
+
+    /**
+     * Reads one full frame into [buffer]. Returns false if the driver has no
+     * complete frame available right now.
+     */
+    private fun readFrame(fd: FileDescriptor): Boolean {
         var totalRead = 0
-        while (totalRead < buffer.size && isRunning) {
-            val read = stream.read(buffer, totalRead, buffer.size - totalRead)
-            if (read == -1) break
+        while (totalRead < BUFFER_SIZE) {
+            val read = try {
+                Os.read(fd, buffer, totalRead, BUFFER_SIZE - totalRead)
+            } catch (e: ErrnoException) {
+                if (e.errno == OsConstants.EAGAIN || e.errno == OsConstants.EINTR) return false
+                throw e
+            }
+            if (read <= 0) return false
             totalRead += read
         }
-        return totalRead
+        lastReadNanos = SystemClock.elapsedRealtimeNanos()
+        errorRetryDelayMs = ERROR_RETRY_DELAY_MS
+        return true
+    }
+
+    private fun packFrame(): Int {
+        var frame = 0
+        if (buffer[0].toInt() == 1) frame = frame or HALL_LEFT
+        if (buffer[1].toInt() == 1) frame = frame or HALL_RIGHT
+        if (buffer[2].toInt() == 1) frame = frame or KEY_LEFT
+        if (buffer[3].toInt() == 1) frame = frame or KEY_RIGHT
+        return frame
+    }
+
+    private fun dispatchFrame(frame: Int) {
+        val changed = frame xor lastFrame
+        if (changed == 0) return
+        lastFrame = frame
+        sink.onFrame(frame, lastReadNanos)
+    }
+
+    fun dump(pw: PrintWriter) {
+        val mode = when {
+            eventDriven -> "event"
+            isHallOnly() -> "polling (hall-only)"
+            else -> "polling"
+        }
+        pw.println("  reader: mode=$mode reconnects=$reconnectCount pollReads=$pollReads")
     }
 }
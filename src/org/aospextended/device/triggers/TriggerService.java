@@ -250,6 +250,7 @@ public class TriggerService implements View.OnTouchListener, View.OnClickListene
         editor.putString("left_trigger_y", String.valueOf(ly));
         editor.putString("right_trigger_x", String.valueOf(rx));
         editor.putString("right_trigger_y", String.valueOf(ry));
+        editor.putInt("trigger_reference_rotation", windowManager.getDefaultDisplay().getRotation());
         editor.commit();
 	Utils.writeValue("/proc/touchpanel/left_trigger_x", String.valueOf(lx));
         Utils.writeValue("/proc/touchpanel/left_trigger_y", String.valueOf(ly));
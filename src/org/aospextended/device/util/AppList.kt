@@ -133,7 +133,7 @@ class AppList: Fragment(R.layout.app_list_layout) {
     }
 
     private fun getKey(): String {
-        return "game_app_list"
+        return GameRegistry.KEY_GAME_APP_LIST
     }
 
     private fun refreshList() {
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2020 The AospExtended Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.aospextended.device.util;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.provider.Settings;
+import android.util.Slog;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps the game app list in memory and whether the foreground app is on it.
+ *
+ * The list is re-read only when the "game_app_list" setting changes and the
+ * flag is recomputed only when the list or the foreground app changes, so
+ * {@link #isGameApp()} is a single volatile read. Packages are matched
+ * exactly.
+ *
+ * The foreground app is followed through the "appName" setting written by
+ * TaskService, which also works from system_server (KeyHandler); in the app
+ * process TaskService's listener updates it without the settings round trip.
+ */
+public class GameRegistry {
+    private static final boolean DEBUG = Utils.DEBUG;
+    private static final String TAG = "GameRegistry";
+
+    public static final String KEY_GAME_APP_LIST = "game_app_list";
+    public static final String KEY_APP_NAME = "appName";
+
+    private static volatile GameRegistry sInstance;
+
+    private final ContentResolver mResolver;
+    private volatile Set<String> mGames = Collections.emptySet();
+    private volatile String mForegroundApp;
+    private volatile boolean mIsGameApp;
+
+    private final ContentObserver mListObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            loadList();
+        }
+    };
+
+    private final ContentObserver mAppNameObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mForegroundApp = Settings.System.getString(mResolver, KEY_APP_NAME);
+            update();
+        }
+    };
+
+    private final TaskService.OnForegroundAppChangedListener mForegroundAppListener =
+            packageName -> {
+                mForegroundApp = packageName;
+                update();
+            };
+
+    public static GameRegistry getInstance(Context context) {
+        GameRegistry instance = sInstance;
+        if (instance != null) return instance;
+        synchronized (GameRegistry.class) {
+            if (sInstance == null) {
+                sInstance = new GameRegistry(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private GameRegistry(Context context) {
+        mResolver = context.getContentResolver();
+        mResolver.registerContentObserver(Settings.System.getUriFor(KEY_GAME_APP_LIST), false,
+                mListObserver);
+        mResolver.registerContentObserver(Settings.System.getUriFor(KEY_APP_NAME), false,
+                mAppNameObserver);
+        TaskService.addOnForegroundAppChangedListener(mForegroundAppListener);
+
+        String foregroundApp = TaskService.getForegroundApp();
+        mForegroundApp = foregroundApp != null ? foregroundApp
+                : Settings.System.getString(mResolver, KEY_APP_NAME);
+        loadList();
+    }
+
+    /**
+     * Returns whether the foreground app is on the game app list.
+     */
+    public boolean isGameApp() {
+        return mIsGameApp;
+    }
+
+    public boolean isGameApp(String packageName) {
+        return packageName != null && mGames.contains(packageName);
+    }
+
+    private void loadList() {
+        String list = Settings.System.getString(mResolver, KEY_GAME_APP_LIST);
+        Set<String> games = new HashSet<>();
+        if (list != null) {
+            for (String packageName : list.split(",")) {
+                packageName = packageName.trim();
+                if (!packageName.isEmpty()) games.add(packageName);
+            }
+        }
+        mGames = games;
+        update();
+    }
+
+    private synchronized void update() {
+        mIsGameApp = isGameApp(mForegroundApp);
+        if (DEBUG) Slog.d(TAG, "foregroundApp: " + mForegroundApp + " isGameApp: " + mIsGameApp);
+    }
+}
@@ -20,11 +20,13 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.graphics.Rect;
 import android.os.AsyncTask;
 import android.os.RemoteException;
 import android.util.Slog;
 
 import android.app.TaskStackListener;
+import android.app.WindowConfiguration;
 
 import androidx.preference.PreferenceManager;
 
@@ -37,6 +39,7 @@ import java.io.FileReader;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -59,6 +62,29 @@ public class TaskService extends Service {
     private static final String TAG = "TaskService";
     private static final boolean DEBUG = Utils.DEBUG;
 
+    /**
+     * Notified on a background thread whenever the foreground app changes.
+     */
+    public interface OnForegroundAppChangedListener {
+        void onForegroundAppChanged(String packageName);
+    }
+
+    /**
+     * Notified on a background thread whenever the focused task moves to
+     * another display or window. Bounds are empty for a fullscreen task.
+     */
+    public interface OnTaskBoundsChangedListener {
+        void onTaskBoundsChanged(int displayId, Rect bounds);
+    }
+
+    private static final CopyOnWriteArrayList<OnForegroundAppChangedListener> sListeners =
+            new CopyOnWriteArrayList<>();
+    private static final CopyOnWriteArrayList<OnTaskBoundsChangedListener> sBoundsListeners =
+            new CopyOnWriteArrayList<>();
+    private static volatile String sForegroundApp;
+    private static volatile int sTaskDisplayId;
+    private static final Rect sTaskBounds = new Rect();
+
     private Context mContext;
     private ComponentName mTaskComponentName;
     private PackageManager mPm;
@@ -73,6 +99,9 @@ public class TaskService extends Service {
                     if (focusedStack != null && focusedStack.topActivity != null) {
                         mTaskComponentName = focusedStack.topActivity;
                     }
+                    if (focusedStack != null) {
+                        saveTaskBounds(focusedStack);
+                    }
                 } catch (Exception e) {}
                 try {
                     if (mTaskComponentName != null) {
@@ -84,6 +113,11 @@ public class TaskService extends Service {
                 }
             });
         }
+
+        @Override
+        public void onTaskDisplayChanged(int taskId, int newDisplayId) {
+            onTaskStackChanged();
+        }
     };
 
     @Override
@@ -124,9 +158,65 @@ public class TaskService extends Service {
         return null;
     }
 
+    public static String getForegroundApp() {
+        return sForegroundApp;
+    }
+
+    public static void addOnForegroundAppChangedListener(OnForegroundAppChangedListener listener) {
+        sListeners.addIfAbsent(listener);
+    }
+
+    public static void removeOnForegroundAppChangedListener(OnForegroundAppChangedListener listener) {
+        sListeners.remove(listener);
+    }
+
+    /**
+     * Returns the display of the focused task and copies its bounds into
+     * outBounds (empty for a fullscreen task).
+     */
+    public static int getTaskBounds(Rect outBounds) {
+        synchronized (sTaskBounds) {
+            outBounds.set(sTaskBounds);
+            return sTaskDisplayId;
+        }
+    }
+
+    public static void addOnTaskBoundsChangedListener(OnTaskBoundsChangedListener listener) {
+        sBoundsListeners.addIfAbsent(listener);
+    }
+
+    public static void removeOnTaskBoundsChangedListener(OnTaskBoundsChangedListener listener) {
+        sBoundsListeners.remove(listener);
+    }
+
+    private static void saveTaskBounds(ActivityTaskManager.RootTaskInfo task) {
+        final Rect bounds = new Rect();
+        if (task.configuration.windowConfiguration.getWindowingMode()
+                != WindowConfiguration.WINDOWING_MODE_FULLSCREEN) {
+            bounds.set(task.bounds);
+        }
+        synchronized (sTaskBounds) {
+            if (task.displayId == sTaskDisplayId && bounds.equals(sTaskBounds)) {
+                return;
+            }
+            sTaskDisplayId = task.displayId;
+            sTaskBounds.set(bounds);
+        }
+        if (DEBUG) Log.d(TAG, "task displayId=" + task.displayId + " bounds=" + bounds);
+        for (OnTaskBoundsChangedListener listener : sBoundsListeners) {
+            listener.onTaskBoundsChanged(task.displayId, bounds);
+        }
+    }
+
     public void saveAppName(String appName) {
         if (DEBUG) Log.d(TAG, "appName=" + appName);
-        Settings.System.putString(getContentResolver(), "appName", appName);
+        Settings.System.putString(getContentResolver(), GameRegistry.KEY_APP_NAME, appName);
+        if (!appName.equals(sForegroundApp)) {
+            sForegroundApp = appName;
+            for (OnForegroundAppChangedListener listener : sListeners) {
+                listener.onForegroundAppChanged(appName);
+            }
+        }
         LedUtils ledUtils = LedUtils.getInstance(this);
         ledUtils.play(Utils.isGameApp(this) && Utils.getSharedPreferences(this).getBoolean("led_disco", false));
     }
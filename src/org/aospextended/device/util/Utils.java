@@ -25,6 +25,8 @@ import android.util.Slog;
 
 import androidx.preference.PreferenceManager;
 
+import org.aospextended.device.gamekey.GamekeyState;
+
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileInputStream;
@@ -99,11 +101,7 @@ public class Utils {
     }
 
     public static boolean isGameApp(Context context) {
-        String appName = Settings.System.getString(context.getContentResolver(), "appName");
-        String appList = Settings.System.getString(context.getContentResolver(), "game_app_list");
-        boolean isGameApp = appList != null && appList.contains(appName);
-        if (DEBUG) Slog.d(TAG, "appName: " + appName + " appList: " + appList + " isGameApp: " + isGameApp);
-        return isGameApp;
+        return GameRegistry.getInstance(context).isGameApp();
     }
 
     /**
@@ -217,7 +215,16 @@ public class Utils {
         return line;
     }
 
+    /**
+     * Returns whether the given byte of the gamekey frame is set. Served from
+     * the snapshot published by GamekeyService's reader; only falls back to
+     * reading /dev/gamekey directly when the reader is not connected.
+     * @param position byte index: 0 left slider, 1 right slider, 2 left key, 3 right key
+     */
     public static boolean getTriggerEnabled(int position) {
+        if (GamekeyState.isAvailable()) {
+            return GamekeyState.isSet(position);
+        }
         File file = new File("/dev/gamekey");
         if (file.exists()) {
             file.length();
@@ -0,0 +1,82 @@
+/*
+ * SPDX-FileCopyrightText: The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.aospextended.device.gamekey
+
+import android.os.Debug
+import android.os.SystemClock
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Checks that a press, chord and turbo session allocates nothing on the
+ * calling thread once the MotionEvent pool is warm.
+ */
+@RunWith(AndroidJUnit4::class)
+@Suppress("DEPRECATION")
+class GamekeyTouchInjectorAllocationTest {
+    companion object {
+        private const val WARMUP_SESSIONS = 5
+        private const val SESSIONS = 20
+        private const val TURBO_TAPS = 3
+        // Lets the injection thread recycle each event back into the pool
+        private const val DRAIN_WAIT_MS = 5L
+    }
+
+    private lateinit var injector: GamekeyTouchInjector
+
+    @Before
+    fun setUp() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        injector = GamekeyTouchInjector(context, asyncInjection = true)
+        injector.setTriggerPoints(TriggersReader.KEY_LEFT, floatArrayOf(100f, 100f, 200f, 100f), 2)
+        injector.setTriggerPoints(TriggersReader.KEY_RIGHT, floatArrayOf(100f, 300f), 1)
+        // Slow enough that the clock thread stays out of the way of the script
+        injector.setTriggerTurbo(TriggersReader.KEY_LEFT, 1)
+    }
+
+    @After
+    fun tearDown() {
+        injector.shutdown()
+    }
+
+    @Test
+    fun turboSessionDoesNotAllocate() {
+        repeat(WARMUP_SESSIONS) { runSession() }
+
+        Debug.resetThreadAllocCount()
+        Debug.startAllocCounting()
+        try {
+            repeat(SESSIONS) { runSession() }
+        } finally {
+            Debug.stopAllocCounting()
+        }
+
+        assertEquals("objects allocated", 0, Debug.getThreadAllocCount())
+    }
+
+    private fun runSession() {
+        step { injector.applyFrame(TriggersReader.KEY_LEFT, 0, SystemClock.elapsedRealtimeNanos()) }
+        step { injector.applyFrame(TriggersReader.KEY_RIGHT, 0, SystemClock.elapsedRealtimeNanos()) }
+        repeat(TURBO_TAPS) {
+            step { injector.runTurboPhase(TriggersReader.KEY_LEFT, false, System.nanoTime()) }
+            step { injector.runTurboPhase(TriggersReader.KEY_LEFT, true, System.nanoTime()) }
+        }
+        step {
+            injector.applyFrame(0, TriggersReader.KEY_LEFT or TriggersReader.KEY_RIGHT,
+                SystemClock.elapsedRealtimeNanos())
+        }
+    }
+
+    private inline fun step(action: () -> Unit) {
+        action()
+        SystemClock.sleep(DRAIN_WAIT_MS)
+    }
+}